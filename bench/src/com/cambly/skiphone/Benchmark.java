@@ -0,0 +1,156 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A minimal benchmark harness for running the Android independent parts of
+ * SkiPhone on a desktop JVM. Each benchmark is warmed up, then run for a fixed
+ * amount of time, and the average time and heap allocation per operation are
+ * reported. Benchmarks of paths that must not allocate fail if they do.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public abstract class Benchmark {
+  private static final long WARMUP_NANOS = 2000L * 1000 * 1000;
+  private static final long MEASURE_NANOS = 3000L * 1000 * 1000;
+
+  /* Operations run between clock checks. */
+  private static final int BATCH_SIZE = 64;
+
+  /* Results are accumulated here so the JIT can't discard the work. */
+  private static volatile long sink;
+
+  private final String name;
+
+  /* Whether run() must not allocate. */
+  private final boolean isAllocationFree;
+
+  protected Benchmark(String name) {
+    this(name, false);
+  }
+
+  /**
+   * @param isAllocationFree whether run() must not allocate. runAll fails if
+   *          it does.
+   */
+  protected Benchmark(String name, boolean isAllocationFree) {
+    this.name = name;
+    this.isAllocationFree = isAllocationFree;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public boolean isAllocationFree() {
+    return isAllocationFree;
+  }
+
+  /**
+   * Called once before the benchmark is run.
+   */
+  public void setUp() throws Exception {
+  }
+
+  /**
+   * Called once after the benchmark is run.
+   */
+  public void tearDown() throws Exception {
+  }
+
+  /**
+   * Run one operation. Return something derived from the result so the work
+   * can't be optimized away.
+   */
+  public abstract long run() throws Exception;
+
+  /**
+   * Throw an IllegalStateException if a check on the code being benchmarked
+   * failed.
+   */
+  public static void check(boolean condition, String what) {
+    if (!condition) {
+      throw new IllegalStateException("Check failed: " + what);
+    }
+  }
+
+  /**
+   * Run the benchmarks one after another and print ns/op and B/op for each.
+   * Once they have all run, throws an IllegalStateException if any that are
+   * allocation free allocated.
+   */
+  public static void runAll(List<Benchmark> benchmarks) throws Exception {
+    List<String> allocating = new ArrayList<String>();
+    System.out.println(String.format("%-50s %12s %10s", "Benchmark", "ns/op", "B/op"));
+    for (Benchmark benchmark : benchmarks) {
+      benchmark.setUp();
+      try {
+        measure(benchmark, WARMUP_NANOS);
+        // Asking for the allocated bytes allocates a little itself.
+        long allocatedBefore = allocatedBytes();
+        long probeBytes = allocatedBytes() - allocatedBefore;
+        allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        long ops = measure(benchmark, MEASURE_NANOS);
+        long elapsed = System.nanoTime() - start;
+        long allocated = Math.max(0, allocatedBytes() - allocatedBefore - probeBytes);
+        System.out.println(String.format("%-50s %12.1f %10s", benchmark.getName(),
+            (double) elapsed / ops, allocatedBefore < 0 ? "n/a" : String.format("%.1f",
+                (double) allocated / ops)));
+        if (benchmark.isAllocationFree() && allocatedBefore >= 0 && allocated > 0) {
+          allocating.add(benchmark.getName() + " (" + allocated + " B in " + ops + " ops)");
+        }
+      } finally {
+        benchmark.tearDown();
+      }
+    }
+    if (!allocating.isEmpty()) {
+      throw new IllegalStateException("Allocation free benchmarks allocated: " + allocating);
+    }
+  }
+
+  private static long measure(Benchmark benchmark, long durationNanos) throws Exception {
+    long result = 0;
+    long ops = 0;
+    long end = System.nanoTime() + durationNanos;
+    do {
+      for (int i = 0; i < BATCH_SIZE; i++) {
+        result += benchmark.run();
+      }
+      ops += BATCH_SIZE;
+    } while (System.nanoTime() < end);
+    sink += result;
+    return ops;
+  }
+
+  /**
+   * Returns the bytes allocated by this thread so far, or -1 if the JVM can't
+   * tell us.
+   */
+  private static long allocatedBytes() {
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * A call state source for running off the device. The state is set by hand,
+ * and queries can be made to take about as long as a binder call.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class FakeCallStateSource implements CallStateSource {
+  /* The TelephonyManager call states. */
+  public static final int IDLE = 0;
+  public static final int RINGING = 1;
+  public static final int OFFHOOK = 2;
+
+  /* How long each query takes, in ns. */
+  private final long queryNanos;
+
+  private int callState = IDLE;
+  private Listener listener;
+  private int queries = 0;
+
+  public FakeCallStateSource(long queryNanos) {
+    this.queryNanos = queryNanos;
+  }
+
+  /**
+   * Change the call state and tell the listener, if the source is started.
+   */
+  public void setCallState(int callState) {
+    this.callState = callState;
+    if (listener != null) {
+      listener.onCallStateChanged(callState);
+    }
+  }
+
+  public int getCallState() {
+    queries++;
+    // Spin rather than sleep, since a binder call keeps the caller busy.
+    long end = System.nanoTime() + queryNanos;
+    while (System.nanoTime() < end) {
+    }
+    return callState;
+  }
+
+  /**
+   * Returns the number of times the state has been queried.
+   */
+  public int getQueryCount() {
+    return queries;
+  }
+
+  public void start(Listener listener) {
+    this.listener = listener;
+  }
+
+  public void stop() {
+    listener = null;
+  }
+}
@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Replays synthetic sensor traces through a {@link GestureEngine}, the way
+ * ShakeDetector runs it, and checks the exact sequence of gestures emitted.
+ * Each case is written to a trace file with {@link SensorTraceRecorder} and
+ * read back by {@link SensorTraceReplayer}, so the recording format is
+ * checked too. Run before the benchmarks, and on its own with
+ * 
+ * <pre>
+ * java -cp /tmp/bench com.cambly.skiphone.GestureReplayChecks
+ * </pre>
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class GestureReplayChecks {
+  /* The trace sampling period and length, in ms. */
+  private static final long PERIOD_MILLIS = 20;
+  private static final long LENGTH_MILLIS = 20 * 1000;
+
+  /* Each shake lasts a second at 5Hz, rising and falling smoothly. */
+  private static final long SHAKE_MILLIS = 1000;
+  private static final double SHAKE_HZ = 5;
+  private static final double SHAKE_AMPLITUDE = 35;
+
+  /* The axes a shake can be along. */
+  private static final int Y = 1;
+  private static final int Z = 2;
+
+  /*
+   * The gestures ActionTable.DEFAULT_MAPPING maps, which are the ones the
+   * service enables by default. ActionTable needs Android, so it isn't used
+   * here.
+   */
+  private static final int DEFAULT_MAPPED = Gesture.bit(Gesture.VERTICAL_SHAKE)
+      | Gesture.bit(Gesture.HORIZONTAL_SHAKE);
+
+  public static void main(String[] args) throws IOException {
+    run();
+    System.out.println("Gesture replay checks passed.");
+  }
+
+  /**
+   * Run every case, throwing if any emits the wrong gestures.
+   */
+  public static void run() throws IOException {
+    check("one vertical shake", new long[] { 2000 }, Y, Gesture.ALL, "vertical_shake");
+    check("one horizontal shake", new long[] { 2000 }, Z, Gesture.ALL, "horizontal_shake");
+    check("two vertical shakes 7s apart", new long[] { 2000, 9000 }, Y, Gesture.ALL,
+        "vertical_shake,vertical_shake");
+    check("two vertical shakes 3s apart", new long[] { 2000, 5000 }, Y, Gesture.ALL,
+        "vertical_shake,double_shake");
+    // Answering then hanging up: without a double shake mapping, the second
+    // shake has to come through as a shake.
+    check("two vertical shakes 3s apart, default mapping", new long[] { 2000, 5000 }, Y,
+        DEFAULT_MAPPED, "vertical_shake,vertical_shake");
+    check("two horizontal shakes 3s apart, default mapping", new long[] { 2000, 5000 }, Z,
+        DEFAULT_MAPPED, "horizontal_shake,horizontal_shake");
+  }
+
+  /**
+   * Replay a trace with shakes along an axis at the given times through an
+   * engine with the given {@link Gesture#bit}s enabled, and check the
+   * gestures emitted.
+   */
+  private static void check(String name, long[] shakeMillis, int axis, int enabledGestures,
+      String expected) throws IOException {
+    File traceFile = File.createTempFile("skiphone-replay", ".trace");
+    try {
+      writeTrace(traceFile, shakeMillis, axis);
+      GestureEngine engine = new GestureEngine(new ShakeAnalyzer());
+      engine.setEnabledGestures(enabledGestures);
+      String emitted = SensorTraceReplayer.replay(traceFile, engine).describeGestures();
+      Benchmark.check(expected.equals(emitted), "replay " + name + ": expected " + expected
+          + " but got " + emitted);
+    } finally {
+      traceFile.delete();
+    }
+  }
+
+  /**
+   * Write a phone held upright with sensor noise, shaken along the given
+   * axis starting at each of the given times.
+   */
+  private static void writeTrace(File traceFile, long[] shakeMillis, int axis)
+      throws IOException {
+    Random random = new Random(42);
+    SensorTraceRecorder recorder = new SensorTraceRecorder(traceFile);
+    try {
+      for (long t = PERIOD_MILLIS; t <= LENGTH_MILLIS; t += PERIOD_MILLIS) {
+        float[] values = { (float) random.nextGaussian() * 0.3f,
+            9.81f + (float) random.nextGaussian() * 0.3f, (float) random.nextGaussian() * 0.3f };
+        for (long start : shakeMillis) {
+          if (t >= start && t < start + SHAKE_MILLIS) {
+            double phase = (double) (t - start) / SHAKE_MILLIS;
+            values[axis] += (float) (Math.sin(Math.PI * phase)
+                * Math.sin(2 * Math.PI * SHAKE_HZ * phase) * SHAKE_AMPLITUDE);
+          }
+        }
+        recorder.append(t * 1000 * 1000, values[0], values[1], values[2]);
+      }
+    } finally {
+      recorder.close();
+    }
+  }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Trains a {@link ShakeTreeModel} from recorded sensor traces, evaluates it
+ * and writes it out for bundling as the shake_model.bin asset:
+ * 
+ * <pre>
+ * java -cp /tmp/bench com.cambly.skiphone.ShakeTreeTrainer shake_model.bin run1.trace ...
+ * </pre>
+ * 
+ * A trace can have a labels file next to it (run1.trace.labels) with one
+ * "timestamp_ns gesture_number" line per gesture the person actually made.
+ * Traces without labels are labeled by the threshold {@link ShakeAnalyzer},
+ * which trains the tree to imitate it.
+ * 
+ * Every fourth window is held out for testing. The accuracy on those windows,
+ * the confusion matrix and the classifier's CPU cost per reading are printed.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ShakeTreeTrainer {
+  private static final int MAX_DEPTH = 6;
+  private static final int MIN_LEAF = 4;
+
+  /* Training examples: features and labels, indexed by window. */
+  private int[][] features = new int[1024][];
+  private int[] labels = new int[1024];
+  private int size = 0;
+
+  /* The tree being built. */
+  private byte[] nodeFeature = new byte[64];
+  private int[] nodeThreshold = new int[64];
+  private short[] nodeBelow = new short[64];
+  private short[] nodeAbove = new short[64];
+  private int nodes = 0;
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: ShakeTreeTrainer <model file> <trace file>...");
+      System.exit(1);
+    }
+    ShakeTreeTrainer trainer = new ShakeTreeTrainer();
+    for (int i = 1; i < args.length; i++) {
+      trainer.addTrace(new File(args[i]));
+    }
+    System.out.println(trainer.size + " windows");
+
+    ShakeTreeModel model = trainer.train();
+    System.out.println(model.getNodeCount() + " nodes");
+    trainer.evaluate(model);
+    for (int i = 1; i < args.length; i++) {
+      measureCost(model, new File(args[i]));
+    }
+
+    OutputStream out = new FileOutputStream(args[0]);
+    try {
+      model.write(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Turn a trace into labeled windows.
+   */
+  private void addTrace(File traceFile) throws IOException {
+    long[] labelTimes = new long[0];
+    int[] labelGestures = new int[0];
+    File labelFile = new File(traceFile.getPath() + ".labels");
+    boolean hasLabels = labelFile.exists();
+    if (hasLabels) {
+      BufferedReader reader = new BufferedReader(new FileReader(labelFile));
+      try {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.trim().split("\\s+");
+          if (fields.length != 2) {
+            continue;
+          }
+          labelTimes = Arrays.copyOf(labelTimes, labelTimes.length + 1);
+          labelGestures = Arrays.copyOf(labelGestures, labelGestures.length + 1);
+          labelTimes[labelTimes.length - 1] = Long.parseLong(fields[0]);
+          labelGestures[labelGestures.length - 1] = Integer.parseInt(fields[1]);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    ShakeFeatureExtractor extractor = new ShakeFeatureExtractor();
+    ShakeAnalyzer teacher = new ShakeAnalyzer();
+    MappedByteBuffer trace = SensorTraceReplayer.map(traceFile);
+    int nextLabel = 0;
+
+    // Gestures made in the previous and current feature blocks.
+    int previousBlockLabel = Gesture.NONE;
+    int currentBlockLabel = Gesture.NONE;
+
+    int lastRecord = trace.limit() - SensorTraceRecorder.RECORD_SIZE;
+    for (int offset = SensorTraceRecorder.HEADER_SIZE; offset <= lastRecord;
+        offset += SensorTraceRecorder.RECORD_SIZE) {
+      long timestampNanos = trace.getLong(offset);
+      if (timestampNanos == 0) {
+        break;
+      }
+      float x = trace.getFloat(offset + 8);
+      float y = trace.getFloat(offset + 12);
+      float z = trace.getFloat(offset + 16);
+
+      if (extractor.onSample(timestampNanos, x, y, z)) {
+        add(extractor.getFeatures().clone(), currentBlockLabel != Gesture.NONE
+            ? currentBlockLabel : previousBlockLabel);
+        previousBlockLabel = currentBlockLabel;
+        currentBlockLabel = Gesture.NONE;
+      }
+
+      if (hasLabels) {
+        while (nextLabel < labelTimes.length && labelTimes[nextLabel] <= timestampNanos) {
+          currentBlockLabel = labelGestures[nextLabel++];
+        }
+      } else {
+        int shake = teacher.onSample(timestampNanos, x, y, z);
+        if (shake != Gesture.NONE) {
+          currentBlockLabel = shake;
+          // Label every window the shaking lasts through, not just the ones
+          // the analyzer's debounce lets through.
+          teacher.reset();
+        }
+      }
+    }
+  }
+
+  private void add(int[] windowFeatures, int label) {
+    if (size == labels.length) {
+      features = Arrays.copyOf(features, size * 2);
+      labels = Arrays.copyOf(labels, size * 2);
+    }
+    features[size] = windowFeatures;
+    labels[size] = label;
+    size++;
+  }
+
+  private static boolean isTest(int window) {
+    return window % 4 == 3;
+  }
+
+  private ShakeTreeModel train() {
+    int[] training = new int[size];
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (!isTest(i)) {
+        training[count++] = i;
+      }
+    }
+    build(training, 0, count, 0);
+    return new ShakeTreeModel(Arrays.copyOf(nodeFeature, nodes),
+        Arrays.copyOf(nodeThreshold, nodes), Arrays.copyOf(nodeBelow, nodes),
+        Arrays.copyOf(nodeAbove, nodes));
+  }
+
+  /**
+   * Build the subtree for windows[from, to) and return its root. Nodes are
+   * added in preorder, so children always come after their parent.
+   */
+  private int build(int[] windows, int from, int to, int depth) {
+    int node = addNode();
+    int[] counts = new int[Gesture.COUNT];
+    for (int i = from; i < to; i++) {
+      counts[labels[windows[i]]]++;
+    }
+    int majority = 0;
+    for (int c = 1; c < Gesture.COUNT; c++) {
+      if (counts[c] > counts[majority]) {
+        majority = c;
+      }
+    }
+    nodeFeature[node] = -1;
+    nodeThreshold[node] = majority;
+    if (depth == MAX_DEPTH || counts[majority] == to - from || to - from < 2 * MIN_LEAF) {
+      return node;
+    }
+
+    // Find the split with the lowest weighted Gini impurity.
+    double bestImpurity = gini(counts, to - from) * (to - from);
+    int bestFeature = -1;
+    int bestThreshold = 0;
+    long[] sorted = new long[to - from];
+    for (int f = 0; f < ShakeFeatureExtractor.FEATURE_COUNT; f++) {
+      for (int i = from; i < to; i++) {
+        sorted[i - from] = ((long) features[windows[i]][f] << 32) | windows[i];
+      }
+      Arrays.sort(sorted);
+      int[] belowCounts = new int[Gesture.COUNT];
+      int[] aboveCounts = counts.clone();
+      for (int i = 0; i < sorted.length - 1; i++) {
+        int label = labels[(int) sorted[i]];
+        belowCounts[label]++;
+        aboveCounts[label]--;
+        int value = (int) (sorted[i] >> 32);
+        int below = i + 1;
+        int above = sorted.length - below;
+        if (value == (int) (sorted[i + 1] >> 32) || below < MIN_LEAF || above < MIN_LEAF) {
+          continue;
+        }
+        double impurity = gini(belowCounts, below) * below + gini(aboveCounts, above) * above;
+        if (impurity < bestImpurity - 1e-9) {
+          bestImpurity = impurity;
+          bestFeature = f;
+          bestThreshold = value;
+        }
+      }
+    }
+    if (bestFeature < 0) {
+      return node;
+    }
+
+    // Partition the windows and build the children.
+    int split = from;
+    for (int i = from; i < to; i++) {
+      if (features[windows[i]][bestFeature] <= bestThreshold) {
+        int window = windows[i];
+        windows[i] = windows[split];
+        windows[split++] = window;
+      }
+    }
+    nodeFeature[node] = (byte) bestFeature;
+    nodeThreshold[node] = bestThreshold;
+    int below = build(windows, from, split, depth + 1);
+    int above = build(windows, split, to, depth + 1);
+    nodeBelow[node] = (short) below;
+    nodeAbove[node] = (short) above;
+    return node;
+  }
+
+  private int addNode() {
+    if (nodes == nodeFeature.length) {
+      nodeFeature = Arrays.copyOf(nodeFeature, nodes * 2);
+      nodeThreshold = Arrays.copyOf(nodeThreshold, nodes * 2);
+      nodeBelow = Arrays.copyOf(nodeBelow, nodes * 2);
+      nodeAbove = Arrays.copyOf(nodeAbove, nodes * 2);
+    }
+    return nodes++;
+  }
+
+  private static double gini(int[] counts, int total) {
+    double impurity = 1;
+    for (int c = 0; c < counts.length; c++) {
+      double p = (double) counts[c] / total;
+      impurity -= p * p;
+    }
+    return impurity;
+  }
+
+  private void evaluate(ShakeTreeModel model) {
+    int[][] confusion = new int[Gesture.COUNT][Gesture.COUNT];
+    int correct = 0;
+    int tests = 0;
+    for (int i = 0; i < size; i++) {
+      if (isTest(i)) {
+        int predicted = model.classify(features[i]);
+        confusion[labels[i]][predicted]++;
+        if (predicted == labels[i]) {
+          correct++;
+        }
+        tests++;
+      }
+    }
+    System.out.println(String.format("Test accuracy: %.2f%% (%d/%d)", tests == 0 ? 0
+        : 100.0 * correct / tests, correct, tests));
+    System.out.println("Confusion (rows are labels, columns predictions):");
+    for (int label = 0; label < Gesture.COUNT; label++) {
+      StringBuilder row = new StringBuilder(String.format("%-18s", Gesture.name(label)));
+      for (int predicted = 0; predicted < Gesture.COUNT; predicted++) {
+        row.append(String.format("%7d", confusion[label][predicted]));
+      }
+      System.out.println(row);
+    }
+  }
+
+  /**
+   * Print the CPU cost of running the trained classifier over a trace.
+   */
+  private static void measureCost(ShakeTreeModel model, File traceFile) throws IOException {
+    SensorTraceReplayer.Result result = null;
+    for (int round = 0; round < 10; round++) {
+      TreeShakeClassifier classifier = new TreeShakeClassifier(model);
+      result = replay(traceFile, classifier);
+    }
+    System.out.println(String.format("%s: %.1f ns/reading", traceFile.getName(),
+        (double) result.elapsedNanos / result.samples));
+  }
+
+  private static SensorTraceReplayer.Result replay(File traceFile, TreeShakeClassifier classifier)
+      throws IOException {
+    MappedByteBuffer trace = SensorTraceReplayer.map(traceFile);
+    SensorTraceReplayer.Result result = new SensorTraceReplayer.Result();
+    int lastRecord = trace.limit() - SensorTraceRecorder.RECORD_SIZE;
+    long start = System.nanoTime();
+    for (int offset = SensorTraceRecorder.HEADER_SIZE; offset <= lastRecord;
+        offset += SensorTraceRecorder.RECORD_SIZE) {
+      long timestampNanos = trace.getLong(offset);
+      if (timestampNanos == 0) {
+        break;
+      }
+      switch (classifier.onSample(timestampNanos, trace.getFloat(offset + 8),
+          trace.getFloat(offset + 12), trace.getFloat(offset + 16))) {
+      case Gesture.VERTICAL_SHAKE:
+        result.verticalShakes++;
+        break;
+      case Gesture.HORIZONTAL_SHAKE:
+        result.horizontalShakes++;
+        break;
+      }
+      result.samples++;
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+}
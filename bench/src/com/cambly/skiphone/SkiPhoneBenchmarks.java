@@ -0,0 +1,579 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.File;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the SkiPhone hot paths. These only need the JDK and the
+ * Android independent classes in src, so they can be built and run without
+ * the Android SDK:
+ * 
+ * <pre>
+ * javac -d /tmp/bench bench/src/com/cambly/skiphone/*.java \
+ *     src/com/cambly/skiphone/{SampleWindow,ShakeAnalyzer,ShakeThresholds,Gesture,\
+ * SensorTraceRecorder,SensorTraceReplayer,CameraSizes,PhotoWriter,ShakeFeatureExtractor,\
+ * ShakeTreeModel,TreeShakeClassifier,CallStateSource,CallStateCache,FrameRing,SharpnessScorer,\
+ * FrameMerger,GestureEngine,GestureRecognizer,MotionFeatures,DoubleShakeRecognizer,\
+ * FlickRecognizer,TwistRecognizer,TapRecognizer,SamplingGovernor,ShakeCalibrator,\
+ * P2Quantile}.java
+ * java -cp /tmp/bench com.cambly.skiphone.SkiPhoneBenchmarks [trace files]
+ * </pre>
+ * 
+ * The {@link GestureReplayChecks} run first. Any sensor traces passed on the
+ * command line are replayed through the shake analyzer in addition to the
+ * synthetic stream. The run fails if a benchmark of a path that shouldn't
+ * allocate does.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SkiPhoneBenchmarks {
+  /* Roughly the size of a full resolution JPEG from a 5MP camera. */
+  private static final int PHOTO_SIZE = 1500 * 1024;
+
+  /* Sizes reported by a typical 5MP phone camera. */
+  private static final int[] PREVIEW_WIDTHS = { 1920, 1280, 960, 800, 768, 720, 640, 352, 320,
+      240, 176, 128 };
+  private static final int[] PREVIEW_HEIGHTS = { 1080, 720, 720, 480, 576, 480, 480, 288, 240,
+      160, 144, 96 };
+  private static final int[] PICTURE_WIDTHS = { 2592, 2592, 2048, 1920, 1600, 1280, 1280, 1024,
+      800, 800, 640, 320 };
+  private static final int[] PICTURE_HEIGHTS = { 1944, 1458, 1536, 1080, 1200, 960, 720, 768, 600,
+      480, 480, 240 };
+
+  /* The size of a 1280x720 NV21 preview frame. */
+  private static final int FRAME_SIZE = 1280 * 720 * 3 / 2;
+
+  /* Common preview sizes to score sharpness at. */
+  private static final int[] SCORED_WIDTHS = { 640, 1280, 1920 };
+  private static final int[] SCORED_HEIGHTS = { 480, 720, 1080 };
+
+  /* Roughly how long a TelephonyManager.getCallState() binder call takes. */
+  private static final long CALL_STATE_QUERY_NANOS = 50 * 1000;
+
+  public static void main(String[] args) throws Exception {
+    GestureReplayChecks.run();
+
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    benchmarks.add(new ShakeAnalyzerBenchmark("ShakeAnalyzer.onSample synthetic",
+        syntheticStream(1 << 16)));
+    for (String path : args) {
+      File traceFile = new File(path);
+      benchmarks.add(new ShakeAnalyzerBenchmark("ShakeAnalyzer.onSample " + traceFile.getName(),
+          recordedStream(traceFile)));
+    }
+    benchmarks.add(new GestureEngineBenchmark(syntheticStream(1 << 16)));
+    benchmarks.add(new CameraSizesBenchmark());
+    benchmarks.add(new PhotoWriterBenchmark());
+    benchmarks.add(new CallStateQueryBenchmark());
+    benchmarks.add(new CallStateCacheBenchmark());
+    benchmarks.add(new FrameRingBenchmark());
+    int cores = Runtime.getRuntime().availableProcessors();
+    for (int i = 0; i < SCORED_WIDTHS.length; i++) {
+      benchmarks.add(new SharpnessScorerBenchmark(SCORED_WIDTHS[i], SCORED_HEIGHTS[i], 1));
+      if (cores > 1) {
+        benchmarks.add(new SharpnessScorerBenchmark(SCORED_WIDTHS[i], SCORED_HEIGHTS[i], cores));
+      }
+    }
+    benchmarks.add(new FrameMergerBenchmark(1));
+    if (cores > 1) {
+      benchmarks.add(new FrameMergerBenchmark(cores));
+    }
+    Benchmark.runAll(benchmarks);
+  }
+
+  /**
+   * Accelerometer readings stored as parallel arrays.
+   */
+  private static class Stream {
+    final long[] timestamps;
+    final float[] x;
+    final float[] y;
+    final float[] z;
+
+    Stream(int size) {
+      timestamps = new long[size];
+      x = new float[size];
+      y = new float[size];
+      z = new float[size];
+    }
+  }
+
+  /**
+   * A phone held upright at 50Hz with sensor noise and a burst of vertical or
+   * horizontal shaking every few seconds.
+   */
+  private static Stream syntheticStream(int size) {
+    Random random = new Random(42);
+    Stream stream = new Stream(size);
+    for (int i = 0; i < size; i++) {
+      stream.timestamps[i] = i * 20000000L;
+      stream.x[i] = (float) random.nextGaussian() * 0.5f;
+      stream.y[i] = 9.81f + (float) random.nextGaussian() * 0.5f;
+      stream.z[i] = (float) random.nextGaussian() * 0.5f;
+      int phase = i % 400;
+      if (phase < 50) {
+        float shake = (float) Math.sin(i * 0.8) * 25;
+        if (i / 400 % 2 == 0) {
+          stream.y[i] += shake;
+        } else {
+          stream.z[i] += shake;
+        }
+      }
+    }
+    return stream;
+  }
+
+  private static Stream recordedStream(File traceFile) throws Exception {
+    MappedByteBuffer trace = SensorTraceReplayer.map(traceFile);
+    int size = (trace.limit() - SensorTraceRecorder.HEADER_SIZE) / SensorTraceRecorder.RECORD_SIZE;
+    Stream stream = new Stream(size);
+    for (int i = 0; i < size; i++) {
+      int offset = SensorTraceRecorder.HEADER_SIZE + i * SensorTraceRecorder.RECORD_SIZE;
+      stream.timestamps[i] = trace.getLong(offset);
+      stream.x[i] = trace.getFloat(offset + 8);
+      stream.y[i] = trace.getFloat(offset + 12);
+      stream.z[i] = trace.getFloat(offset + 16);
+    }
+    return stream;
+  }
+
+  /**
+   * One operation is one accelerometer reading. The stream is looped with the
+   * timestamps shifted so the analyzer always sees time moving forward.
+   */
+  private static class ShakeAnalyzerBenchmark extends Benchmark {
+    private final Stream stream;
+    private final ShakeAnalyzer analyzer = new ShakeAnalyzer();
+    private long timeOffset = 0;
+    private int index = 0;
+
+    ShakeAnalyzerBenchmark(String name, Stream stream) {
+      super(name, true);
+      this.stream = stream;
+    }
+
+    @Override
+    public long run() {
+      int i = index;
+      int shake = analyzer.onSample(stream.timestamps[i] + timeOffset, stream.x[i], stream.y[i],
+          stream.z[i]);
+      if (++index == stream.timestamps.length) {
+        index = 0;
+        timeOffset += stream.timestamps[stream.timestamps.length - 1] - stream.timestamps[0]
+            + 20000000L;
+      }
+      return shake;
+    }
+  }
+
+  /**
+   * One operation is one accelerometer reading taken the way ShakeDetector
+   * takes it: through every gesture recognizer, then the sampling governor
+   * and, outside the wait after a shake, the calibrator. A gyroscope reading
+   * goes with each accelerometer reading at the high rate. This should not
+   * allocate. Setting up checks that a pass over the stream finds both kinds
+   * of shake and raises the rate.
+   */
+  private static class GestureEngineBenchmark extends Benchmark {
+    private final Stream stream;
+    private final ShakeAnalyzer analyzer = new ShakeAnalyzer();
+    private final GestureEngine engine = new GestureEngine(analyzer);
+    private final SamplingGovernor governor = new SamplingGovernor(ShakeThresholds.DEFAULT.min());
+    private final ShakeCalibrator calibrator = new ShakeCalibrator();
+    private final int[] gestureCounts = new int[Gesture.COUNT];
+    private long timeOffset = 0;
+    private int index = 0;
+
+    GestureEngineBenchmark(Stream stream) {
+      super("GestureEngine reading with governor/calibrator", true);
+      this.stream = stream;
+    }
+
+    @Override
+    public void setUp() {
+      for (int i = 0; i < stream.timestamps.length; i++) {
+        gestureCounts[(int) run()]++;
+      }
+      check(gestureCounts[Gesture.VERTICAL_SHAKE] > 0, "vertical shakes found");
+      check(gestureCounts[Gesture.HORIZONTAL_SHAKE] > 0, "horizontal shakes found");
+      check(governor.getNanosAtRate(SamplingGovernor.HIGH_RATE) > 0, "rate raised");
+    }
+
+    @Override
+    public long run() {
+      int i = index;
+      long timestamp = stream.timestamps[i] + timeOffset;
+      if (governor.getRate() == SamplingGovernor.HIGH_RATE) {
+        engine.onGyroscope(timestamp, stream.x[i] * 0.1f, stream.z[i] * 0.1f, 0.0f);
+      }
+      int gesture = engine.onAccelerometer(timestamp, stream.x[i], stream.y[i], stream.z[i]);
+      governor.onSample(timestamp, stream.x[i], stream.y[i], stream.z[i]);
+      if (!analyzer.isWaiting(timestamp)) {
+        calibrator.add(analyzer.getXYMeanSquared(), analyzer.getXZMeanSquared());
+      }
+      if (++index == stream.timestamps.length) {
+        index = 0;
+        timeOffset += stream.timestamps[stream.timestamps.length - 1] - stream.timestamps[0]
+            + 20000000L;
+      }
+      return gesture;
+    }
+  }
+
+  /**
+   * One operation picks the picture size and the matching preview size for
+   * a 1280x720 display, as CameraView does on every measure pass. This should
+   * not allocate.
+   */
+  private static class CameraSizesBenchmark extends Benchmark {
+    CameraSizesBenchmark() {
+      super("CameraSizes.getOptimalPicture/PreviewSize", true);
+    }
+
+    @Override
+    public long run() {
+      int picture = CameraSizes.getOptimalPictureSize(PICTURE_WIDTHS, PICTURE_HEIGHTS, 1280, 720);
+      return CameraSizes.getOptimalPreviewSize(PREVIEW_WIDTHS, PREVIEW_HEIGHTS, 720,
+          (double) PICTURE_WIDTHS[picture] / PICTURE_HEIGHTS[picture]);
+    }
+  }
+
+  /**
+   * One operation writes one photo to a temporary directory and deletes it.
+   */
+  private static class PhotoWriterBenchmark extends Benchmark {
+    private final byte[] jpeg = new byte[PHOTO_SIZE];
+    private File photoDir;
+    private PhotoWriter photoWriter;
+    private long time = 0;
+
+    PhotoWriterBenchmark() {
+      super("PhotoWriter.write " + PHOTO_SIZE / 1024 + "KB");
+    }
+
+    @Override
+    public void setUp() throws Exception {
+      new Random(42).nextBytes(jpeg);
+      photoDir = File.createTempFile("skiphone-bench", "");
+      photoDir.delete();
+      photoWriter = new PhotoWriter(photoDir);
+    }
+
+    @Override
+    public long run() throws Exception {
+      File photo = photoWriter.write(jpeg, time++);
+      long length = photo.length();
+      photo.delete();
+      return length;
+    }
+
+    @Override
+    public void tearDown() {
+      photoDir.delete();
+    }
+  }
+
+  /**
+   * One operation queries the call state the way the service used to on
+   * every shake.
+   */
+  private static class CallStateQueryBenchmark extends Benchmark {
+    private final FakeCallStateSource source = new FakeCallStateSource(CALL_STATE_QUERY_NANOS);
+
+    CallStateQueryBenchmark() {
+      super("Call state query (fake binder call)");
+    }
+
+    @Override
+    public long run() {
+      return source.getCallState();
+    }
+  }
+
+  /**
+   * One operation reads the cached call state. This should not allocate.
+   * Setting up checks that the cache follows the source without querying it
+   * again.
+   */
+  private static class CallStateCacheBenchmark extends Benchmark {
+    private final FakeCallStateSource source = new FakeCallStateSource(CALL_STATE_QUERY_NANOS);
+    private final CallStateCache cache = new CallStateCache(source);
+
+    CallStateCacheBenchmark() {
+      super("CallStateCache.getCallState", true);
+    }
+
+    @Override
+    public void setUp() {
+      source.setCallState(FakeCallStateSource.RINGING);
+      cache.start();
+      check(cache.getCallState() == FakeCallStateSource.RINGING, "initial state");
+      source.setCallState(FakeCallStateSource.OFFHOOK);
+      check(cache.getCallState() == FakeCallStateSource.OFFHOOK, "state change");
+      source.setCallState(FakeCallStateSource.IDLE);
+      check(cache.getCallState() == FakeCallStateSource.IDLE, "state change");
+      check(source.getQueryCount() == 1, "one query");
+    }
+
+    @Override
+    public long run() {
+      return cache.getCallState();
+    }
+
+    @Override
+    public void tearDown() {
+      cache.stop();
+      source.setCallState(FakeCallStateSource.RINGING);
+      check(cache.getCallState() == FakeCallStateSource.IDLE, "no changes once stopped");
+    }
+  }
+
+  /**
+   * One operation delivers a preview frame the way the camera does: it fills
+   * a buffer it was handed, the ring keeps it and the freed buffer goes back
+   * to the camera. Every so often a frame is taken and released, as if a
+   * picture were encoded from it. This should not allocate.
+   */
+  private static class FrameRingBenchmark extends Benchmark {
+    private static final int CAPACITY = 4;
+    private static final int SPARES = 2;
+
+    private final FrameRing ring = new FrameRing(CAPACITY, SPARES, FRAME_SIZE);
+
+    /* The buffers the camera has been handed, in the order it fills them. */
+    private final byte[][] cameraQueue = new byte[CAPACITY + SPARES][];
+    private int queueHead = 0;
+    private int queueSize = 0;
+
+    private long time = 0;
+
+    FrameRingBenchmark() {
+      super("FrameRing preview frame", true);
+    }
+
+    @Override
+    public void setUp() {
+      feed();
+      check(queueSize == CAPACITY + SPARES, "camera gets every buffer");
+      for (int i = 0; i < CAPACITY + SPARES; i++) {
+        deliver();
+      }
+      check(ring.size() == CAPACITY, "ring fills");
+      check(queueSize == SPARES, "spares go back to the camera");
+      check(ring.peek(0)[0] == (byte) (time - 1), "newest frame first");
+      check(ring.peek(CAPACITY - 1)[0] == (byte) (time - CAPACITY), "oldest frame last");
+
+      byte[] taken = ring.take(1);
+      check(taken[0] == (byte) (time - 2), "take by age");
+      check(ring.size() == CAPACITY - 1, "take removes the frame");
+      check(ring.peek(0)[0] == (byte) (time - 1) && ring.peek(1)[0] == (byte) (time - 3),
+          "take closes the gap");
+      for (int i = 0; i < 2 * CAPACITY; i++) {
+        deliver();
+        for (int j = 0; j < queueSize; j++) {
+          check(cameraQueue[(queueHead + j) % cameraQueue.length] != taken,
+              "taken frame isn't reused");
+        }
+      }
+      ring.release(taken);
+      feed();
+      check(queueSize == SPARES, "released frame goes back to the camera");
+    }
+
+    @Override
+    public long run() {
+      deliver();
+      if ((time & 0xff) == 0) {
+        byte[] frame = ring.take(0);
+        ring.release(frame);
+      }
+      return queueSize;
+    }
+
+    /**
+     * Fill the next buffer the camera was handed and add it to the ring.
+     */
+    private void deliver() {
+      byte[] frame = cameraQueue[queueHead];
+      cameraQueue[queueHead] = null;
+      queueHead = (queueHead + 1) % cameraQueue.length;
+      queueSize--;
+      frame[0] = (byte) time;
+      ring.add(frame, time++);
+      feed();
+    }
+
+    private void feed() {
+      byte[] buffer;
+      while ((buffer = ring.pollFree()) != null) {
+        cameraQueue[(queueHead + queueSize) % cameraQueue.length] = buffer;
+        queueSize++;
+      }
+    }
+  }
+
+  /**
+   * One operation scores the sharpness of one NV21 frame. The frame is noise
+   * with edges at every scale, and setUp checks that blurring it lowers its
+   * score.
+   */
+  private static class SharpnessScorerBenchmark extends Benchmark {
+    private final int width;
+    private final int height;
+    private final int threads;
+    private final byte[] frame;
+    private SharpnessScorer scorer;
+
+    SharpnessScorerBenchmark(int width, int height, int threads) {
+      super("SharpnessScorer.score " + width + "x" + height + " " + threads + " thread"
+          + (threads == 1 ? "" : "s"));
+      this.width = width;
+      this.height = height;
+      this.threads = threads;
+      frame = new byte[width * height * 3 / 2];
+    }
+
+    @Override
+    public void setUp() {
+      new Random(42).nextBytes(frame);
+      scorer = new SharpnessScorer(threads, 2);
+      byte[] blurred = blur(frame, width, height);
+      float[] scores = new float[2];
+      scorer.score(new byte[][] { blurred, frame }, 2, width, height, scores);
+      check(SharpnessScorer.sharpest(scores, 2) == 1, "blurred frame is sharper");
+      check(scorer.score(blurred, width, height) == scores[0], "scores differ");
+    }
+
+    @Override
+    public long run() {
+      return (long) scorer.score(frame, width, height);
+    }
+
+    /**
+     * Returns a copy of the luma plane with a 3x3 box blur.
+     */
+    private static byte[] blur(byte[] frame, int width, int height) {
+      byte[] blurred = new byte[frame.length];
+      for (int y = 1; y < height - 1; y++) {
+        for (int x = 1; x < width - 1; x++) {
+          int sum = 0;
+          for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+              sum += frame[(y + dy) * width + x + dx] & 0xff;
+            }
+          }
+          blurred[y * width + x] = (byte) (sum / 9);
+        }
+      }
+      return blurred;
+    }
+  }
+
+  /**
+   * One operation merges four 1000x1000 NV21 frames, so ns/op is the cost
+   * per megapixel. The frames are a noisy scene shifted by known amounts, and
+   * setUp checks that the shifts are found and the merge is less noisy than
+   * the reference.
+   */
+  private static class FrameMergerBenchmark extends Benchmark {
+    private static final int SIZE = 1000;
+    private static final int FRAMES = 4;
+    private static final int[] SHIFT_X = { 0, 3, -6, 11 };
+    private static final int[] SHIFT_Y = { 0, -2, 5, 1 };
+    private static final int NOISE = 6;
+
+    private final int threads;
+    private final byte[] scene = new byte[SIZE * SIZE * 3 / 2];
+    private final byte[][] frames = new byte[FRAMES][];
+    private FrameMerger merger;
+
+    FrameMergerBenchmark(int threads) {
+      super("FrameMerger.merge " + FRAMES + " frames/MP " + threads + " thread"
+          + (threads == 1 ? "" : "s"));
+      this.threads = threads;
+    }
+
+    @Override
+    public void setUp() {
+      // Smooth shading with hard edges, like snow with trees and skiers.
+      for (int y = 0; y < SIZE; y++) {
+        for (int x = 0; x < SIZE; x++) {
+          int value = 40 + (x + y) * 180 / (2 * SIZE);
+          if (((x / 37) + (y / 53)) % 3 == 0) {
+            value += 60;
+          }
+          scene[y * SIZE + x] = (byte) value;
+        }
+      }
+      for (int i = SIZE * SIZE; i < scene.length; i++) {
+        scene[i] = (byte) (128 + (i % 7));
+      }
+
+      Random random = new Random(42);
+      for (int f = 0; f < FRAMES; f++) {
+        frames[f] = new byte[scene.length];
+        for (int y = 0; y < SIZE; y++) {
+          for (int x = 0; x < SIZE; x++) {
+            int sceneX = Math.min(Math.max(x - SHIFT_X[f], 0), SIZE - 1);
+            int sceneY = Math.min(Math.max(y - SHIFT_Y[f], 0), SIZE - 1);
+            int value = (scene[sceneY * SIZE + sceneX] & 0xff)
+                + (int) Math.round(random.nextGaussian() * NOISE);
+            frames[f][y * SIZE + x] = (byte) Math.min(Math.max(value, 0), 255);
+          }
+        }
+        System.arraycopy(scene, SIZE * SIZE, frames[f], SIZE * SIZE, SIZE * SIZE / 2);
+      }
+
+      merger = new FrameMerger(threads, FRAMES);
+      byte[] merged = merger.merge(frames, FRAMES, 0, SIZE, SIZE);
+      for (int f = 1; f < FRAMES; f++) {
+        check(merger.getOffsetX(f) == SHIFT_X[f] && merger.getOffsetY(f) == SHIFT_Y[f],
+            "frame " + f + " aligned to " + merger.getOffsetX(f) + "," + merger.getOffsetY(f));
+      }
+      double mergedError = error(merged);
+      double referenceError = error(frames[0]);
+      check(mergedError <= referenceError * 0.75, "merge error " + mergedError
+          + " vs reference " + referenceError);
+    }
+
+    @Override
+    public long run() {
+      return merger.merge(frames, FRAMES, 0, SIZE, SIZE)[SIZE];
+    }
+
+    /**
+     * Returns the RMS difference between a frame's luma and the scene's, away
+     * from the edges of the frame.
+     */
+    private double error(byte[] frame) {
+      double sum = 0;
+      int n = 0;
+      for (int y = 16; y < SIZE - 16; y++) {
+        for (int x = 16; x < SIZE - 16; x++) {
+          int difference = (frame[y * SIZE + x] & 0xff) - (scene[y * SIZE + x] & 0xff);
+          sum += difference * difference;
+          n++;
+        }
+      }
+      return Math.sqrt(sum / n);
+    }
+  }
+}
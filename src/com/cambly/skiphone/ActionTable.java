@@ -0,0 +1,252 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.content.Context;
+import android.content.Intent;
+import android.telephony.TelephonyManager;
+
+/**
+ * What to do for each gesture, depending on the call state and whether the
+ * screen is on. The mapping is compiled into a flat array indexed by
+ * {@link #slot(int, int, boolean)}, with the intents each action needs built
+ * up front, so looking up an action is a single array index. Tables are
+ * immutable, so a new mapping can be swapped in by replacing the reference.
+ * 
+ * A mapping is a list of rules separated by semicolons, e.g.
+ * 
+ * <pre>
+ * vertical_shake:ringing:*=answer;horizontal_shake:idle:on=camera;
+ * tap:idle:*=intent:android.intent.action.MUSIC_PLAYER
+ * </pre>
+ * 
+ * Each rule is gesture:call state:screen=action. The call state is idle,
+ * ringing or offhook, the screen is on, and either can be * to match
+ * anything. Rules for the screen being off are rejected, since the detector
+ * is stopped while it is. The actions are none, answer, hang_up, voice_search, camera and
+ * intent:ACTION, which starts an activity for the intent action, burst:N,
+ * which opens the camera to take a burst of N pictures, merge, which opens
+ * the camera to take a picture merged from several frames, and instant, which
+ * opens the camera to take the picture from the sharpest recent preview frame
+ * with no shutter lag. Pictures taken from preview frames are preview sized,
+ * while camera takes a full size picture. Later rules override earlier ones.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ActionTable {
+  public static final int NONE = 0;
+  public static final int ANSWER = 1;
+  public static final int HANG_UP = 2;
+  public static final int VOICE_SEARCH = 3;
+  public static final int CAMERA = 4;
+  public static final int CUSTOM_INTENT = 5;
+  public static final int BURST = 6;
+  public static final int MERGE = 7;
+  public static final int INSTANT = 8;
+
+  private static final String[] ACTION_NAMES = { "none", "answer", "hang_up", "voice_search",
+      "camera" };
+  private static final String CUSTOM_INTENT_PREFIX = "intent:";
+  private static final String BURST_PREFIX = "burst:";
+  private static final String MERGE_NAME = "merge";
+  private static final String INSTANT_NAME = "instant";
+
+  private static final String[] CALL_STATE_NAMES = { "idle", "ringing", "offhook" };
+  private static final String[] SCREEN_NAMES = { "off", "on" };
+  private static final int SCREEN_OFF = 0;
+
+  /* The mapping SkiPhone has always used. */
+  public static final String DEFAULT_MAPPING = "vertical_shake:ringing:*=answer;"
+      + "vertical_shake:offhook:*=hang_up;vertical_shake:idle:*=voice_search;"
+      + "horizontal_shake:idle:*=camera";
+
+  private static final int CALL_STATES = CALL_STATE_NAMES.length;
+  private static final int SCREEN_STATES = SCREEN_NAMES.length;
+  private static final int SLOTS = Gesture.COUNT * CALL_STATES * SCREEN_STATES;
+
+  /* The action and its intent, if it has one, indexed by slot. */
+  private final int[] actions = new int[SLOTS];
+  private final Intent[] intents = new Intent[SLOTS];
+
+  /* The gestures with an action in any slot, as a mask of Gesture bits. */
+  private final int mappedGestures;
+
+  /* The mapping the table was compiled from. */
+  private final String mapping;
+
+  /**
+   * Compile a mapping.
+   * 
+   * @throws IllegalArgumentException if the mapping can't be parsed
+   */
+  public ActionTable(Context context, String mapping) {
+    this.mapping = mapping;
+
+    // Share one intent between all the slots with the same action.
+    Intent voiceSearchIntent = null;
+    Intent cameraIntent = null;
+
+    for (String rule : mapping.split(";")) {
+      rule = rule.trim();
+      if (rule.length() == 0) {
+        continue;
+      }
+      int equals = rule.indexOf('=');
+      String[] keys = rule.substring(0, Math.max(equals, 0)).split(":");
+      if (equals < 0 || keys.length != 3) {
+        throw new IllegalArgumentException("Bad rule: " + rule);
+      }
+      int gesture = Gesture.parse(keys[0]);
+      if (gesture <= Gesture.NONE) {
+        throw new IllegalArgumentException("Bad gesture: " + rule);
+      }
+      int callState = parseKey(CALL_STATE_NAMES, keys[1], rule);
+      int screen = parseKey(SCREEN_NAMES, keys[2], rule);
+      if (screen == SCREEN_OFF) {
+        throw new IllegalArgumentException("Gestures aren't detected with the screen off: "
+            + rule);
+      }
+
+      String actionName = rule.substring(equals + 1).trim();
+      int action;
+      Intent intent = null;
+      if (actionName.startsWith(CUSTOM_INTENT_PREFIX)) {
+        action = CUSTOM_INTENT;
+        intent = new Intent(actionName.substring(CUSTOM_INTENT_PREFIX.length()));
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+      } else if (actionName.startsWith(BURST_PREFIX)) {
+        action = BURST;
+        int count;
+        try {
+          count = Integer.parseInt(actionName.substring(BURST_PREFIX.length()));
+        } catch (NumberFormatException e) {
+          count = 0;
+        }
+        if (count <= 0) {
+          throw new IllegalArgumentException("Bad burst count: " + rule);
+        }
+        intent = new Intent(context, CameraActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(CameraActivity.BURST_EXTRA, count);
+      } else if (actionName.equals(MERGE_NAME)) {
+        action = MERGE;
+        intent = new Intent(context, CameraActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(CameraActivity.MERGE_EXTRA, true);
+      } else if (actionName.equals(INSTANT_NAME)) {
+        action = INSTANT;
+        intent = new Intent(context, CameraActivity.class);
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        intent.putExtra(CameraActivity.INSTANT_EXTRA, true);
+      } else {
+        action = indexOf(ACTION_NAMES, actionName);
+        if (action < 0) {
+          throw new IllegalArgumentException("Bad action: " + rule);
+        }
+        if (action == VOICE_SEARCH) {
+          if (voiceSearchIntent == null) {
+            voiceSearchIntent = new Intent(Intent.ACTION_SEARCH_LONG_PRESS);
+            voiceSearchIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+          }
+          intent = voiceSearchIntent;
+        } else if (action == CAMERA) {
+          if (cameraIntent == null) {
+            cameraIntent = new Intent(context, CameraActivity.class);
+            cameraIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+          }
+          intent = cameraIntent;
+        }
+      }
+
+      for (int c = 0; c < CALL_STATES; c++) {
+        for (int s = 0; s < SCREEN_STATES; s++) {
+          if ((callState < 0 || callState == c) && (screen < 0 || screen == s)) {
+            int slot = (gesture * CALL_STATES + c) * SCREEN_STATES + s;
+            actions[slot] = action;
+            intents[slot] = intent;
+          }
+        }
+      }
+    }
+
+    int mapped = 0;
+    for (int slot = 0; slot < SLOTS; slot++) {
+      if (actions[slot] != NONE) {
+        mapped |= Gesture.bit(slot / (CALL_STATES * SCREEN_STATES));
+      }
+    }
+    mappedGestures = mapped;
+  }
+
+  /**
+   * Returns the slot for a gesture, TelephonyManager call state and screen
+   * state.
+   */
+  public static int slot(int gesture, int callState, boolean isScreenOn) {
+    if (callState < 0 || callState >= CALL_STATES) {
+      callState = TelephonyManager.CALL_STATE_IDLE;
+    }
+    return (gesture * CALL_STATES + callState) * SCREEN_STATES + (isScreenOn ? 1 : 0);
+  }
+
+  public int getAction(int slot) {
+    return actions[slot];
+  }
+
+  /**
+   * Returns the gestures that have an action in some call and screen state,
+   * as a mask of {@link Gesture#bit}s. The others don't need to be detected.
+   */
+  public int getMappedGestures() {
+    return mappedGestures;
+  }
+
+  public String getMapping() {
+    return mapping;
+  }
+
+  /**
+   * Returns the intent for the action in a slot, or null if it doesn't have
+   * one. Intents are shared between slots and reused, so only set extras that
+   * are always set before starting them.
+   */
+  public Intent getIntent(int slot) {
+    return intents[slot];
+  }
+
+  /**
+   * Returns the index of the key in the names, -1 for *.
+   */
+  private static int parseKey(String[] names, String key, String rule) {
+    if (key.equals("*")) {
+      return -1;
+    }
+    int index = indexOf(names, key);
+    if (index < 0) {
+      throw new IllegalArgumentException("Bad key " + key + ": " + rule);
+    }
+    return index;
+  }
+
+  private static int indexOf(String[] names, String name) {
+    for (int i = 0; i < names.length; i++) {
+      if (names[i].equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
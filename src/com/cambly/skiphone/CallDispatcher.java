@@ -0,0 +1,139 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.content.Context;
+import android.content.Intent;
+import android.media.AudioManager;
+import android.os.Build;
+import android.telecom.TelecomManager;
+import android.util.Log;
+import android.view.KeyEvent;
+
+/**
+ * Answers and hangs up calls by the fastest route the platform allows:
+ * <ol>
+ * <li>TelecomManager, on Oreo and later for answering and Pie and later for
+ * hanging up.</li>
+ * <li>Headset hook key events sent straight to the media key handler, on
+ * KitKat and later.</li>
+ * <li>Headset hook key events sent as ordered broadcasts, which go through
+ * every media button receiver in turn.</li>
+ * </ol>
+ * A route that the platform refuses is not tried again. The key events and
+ * intents are built once up front. The time each route takes is recorded in
+ * {@link GestureLatency}, so dumpsys shows which route the device uses.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class CallDispatcher {
+  private static final String LOG_PREFIX = "CallDispatcher";
+
+  private static final String CALL_PRIVILEGED = "android.permission.CALL_PRIVILEGED";
+
+  private final Context context;
+
+  /* Null before KitKat. */
+  private final AudioManager audioManager;
+
+  /* Null before Lollipop. */
+  private final TelecomManager telecomManager;
+
+  /* Whether the telecom route may be tried. */
+  private boolean isTelecomAllowed;
+
+  /* A headset button press answers a call, and a long press hangs up. */
+  private final KeyEvent buttonDown = new KeyEvent(KeyEvent.ACTION_DOWN,
+      KeyEvent.KEYCODE_HEADSETHOOK);
+  private final KeyEvent buttonUp = new KeyEvent(KeyEvent.ACTION_UP,
+      KeyEvent.KEYCODE_HEADSETHOOK);
+  private final KeyEvent longButtonDown = new KeyEvent(0, 0, KeyEvent.ACTION_DOWN,
+      KeyEvent.KEYCODE_HEADSETHOOK, 0, 0, 0, 0, KeyEvent.FLAG_LONG_PRESS);
+  private final KeyEvent longButtonUp = new KeyEvent(0, 0, KeyEvent.ACTION_UP,
+      KeyEvent.KEYCODE_HEADSETHOOK, 0, 0, 0, 0, KeyEvent.FLAG_LONG_PRESS);
+
+  /* The key events wrapped for broadcasting. */
+  private final Intent buttonDownIntent = mediaButtonIntent(buttonDown);
+  private final Intent buttonUpIntent = mediaButtonIntent(buttonUp);
+  private final Intent longButtonDownIntent = mediaButtonIntent(longButtonDown);
+  private final Intent longButtonUpIntent = mediaButtonIntent(longButtonUp);
+
+  public CallDispatcher(Context context) {
+    this.context = context;
+    audioManager = Build.VERSION.SDK_INT >= 19 ? (AudioManager) context
+        .getSystemService(Context.AUDIO_SERVICE) : null;
+    telecomManager = Build.VERSION.SDK_INT >= 21 ? (TelecomManager) context
+        .getSystemService(Context.TELECOM_SERVICE) : null;
+    isTelecomAllowed = telecomManager != null;
+  }
+
+  /**
+   * Answer the ringing call.
+   */
+  public void answer() {
+    long startNanos = System.nanoTime();
+    if (isTelecomAllowed && Build.VERSION.SDK_INT >= 26) {
+      try {
+        telecomManager.acceptRingingCall();
+        GestureLatency.CALL_VIA_TELECOM.record(System.nanoTime() - startNanos);
+        return;
+      } catch (SecurityException e) {
+        Log.e(LOG_PREFIX, "Not allowed to answer calls through telecom.", e);
+        isTelecomAllowed = false;
+      }
+    }
+    sendKeys(buttonDown, buttonUp, buttonDownIntent, buttonUpIntent, startNanos);
+  }
+
+  /**
+   * Hang up the current call.
+   */
+  public void hangUp() {
+    long startNanos = System.nanoTime();
+    if (isTelecomAllowed && Build.VERSION.SDK_INT >= 28) {
+      try {
+        if (telecomManager.endCall()) {
+          GestureLatency.CALL_VIA_TELECOM.record(System.nanoTime() - startNanos);
+          return;
+        }
+      } catch (SecurityException e) {
+        Log.e(LOG_PREFIX, "Not allowed to end calls through telecom.", e);
+        isTelecomAllowed = false;
+      }
+    }
+    sendKeys(longButtonDown, longButtonUp, longButtonDownIntent, longButtonUpIntent,
+        startNanos);
+  }
+
+  private void sendKeys(KeyEvent down, KeyEvent up, Intent downIntent, Intent upIntent,
+      long startNanos) {
+    if (audioManager != null) {
+      audioManager.dispatchMediaKeyEvent(down);
+      audioManager.dispatchMediaKeyEvent(up);
+      GestureLatency.CALL_VIA_MEDIA_KEY.record(System.nanoTime() - startNanos);
+    } else {
+      context.sendOrderedBroadcast(downIntent, CALL_PRIVILEGED);
+      context.sendOrderedBroadcast(upIntent, CALL_PRIVILEGED);
+      GestureLatency.CALL_VIA_BROADCAST.record(System.nanoTime() - startNanos);
+    }
+  }
+
+  private static Intent mediaButtonIntent(KeyEvent event) {
+    Intent intent = new Intent(Intent.ACTION_MEDIA_BUTTON);
+    intent.putExtra(Intent.EXTRA_KEY_EVENT, event);
+    return intent;
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Keeps the latest call state from a {@link CallStateSource}, so reading it
+ * is a volatile load instead of a query. The source is queried once when the
+ * cache starts and after that the cache is updated by its events.
+ * 
+ * Start and stop the cache on the thread the source delivers events on.
+ * The state can be read from any thread. A listener can be set to hear about
+ * changes as well, on the source's thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class CallStateCache implements CallStateSource.Listener {
+  private final CallStateSource source;
+
+  private volatile int callState;
+
+  private boolean isStarted = false;
+
+  /* Told about changes, or null. */
+  private CallStateSource.Listener listener;
+
+  public CallStateCache(CallStateSource source) {
+    this.source = source;
+  }
+
+  /**
+   * Set a listener to be told about each change after the cache is updated,
+   * or null for none. Call on the thread the source delivers events on.
+   */
+  public void setListener(CallStateSource.Listener listener) {
+    this.listener = listener;
+  }
+
+  public void start() {
+    if (isStarted) {
+      return;
+    }
+    isStarted = true;
+    source.start(this);
+    callState = source.getCallState();
+  }
+
+  public void stop() {
+    if (!isStarted) {
+      return;
+    }
+    isStarted = false;
+    source.stop();
+  }
+
+  public void onCallStateChanged(int callState) {
+    this.callState = callState;
+    if (listener != null) {
+      listener.onCallStateChanged(callState);
+    }
+  }
+
+  /**
+   * Returns the latest call state. Only up to date while the cache is started.
+   */
+  public int getCallState() {
+    return callState;
+  }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Somewhere the phone's call state comes from. States are the
+ * TelephonyManager CALL_STATE values.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public interface CallStateSource {
+  public interface Listener {
+    public void onCallStateChanged(int callState);
+  }
+
+  /**
+   * Returns the current call state. This may be slow.
+   */
+  public int getCallState();
+
+  /**
+   * Start telling the listener about call state changes, on the calling
+   * thread.
+   */
+  public void start(Listener listener);
+
+  public void stop();
+}
@@ -15,22 +15,16 @@
  */
 package com.cambly.skiphone;
 
-import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-
 import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.hardware.Camera;
 import android.hardware.Camera.PictureCallback;
-import android.net.Uri;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
 import android.os.Bundle;
-import android.os.Environment;
 import android.os.Handler;
-import android.provider.MediaStore;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.OrientationEventListener;
@@ -40,7 +34,23 @@ import android.view.ViewGroup.LayoutParams;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class CameraActivity extends Activity implements PictureCallback {
+public class CameraActivity extends Activity implements PictureCallback,
+    FrameCapture.BurstListener {
+  /* When the shake that opened the camera was detected, by System.nanoTime(). */
+  public static final String SHAKE_NANOS_EXTRA = "shake_nanos";
+
+  /* How many pictures to take in a burst. One if missing. */
+  public static final String BURST_EXTRA = "burst";
+
+  /* Whether to merge the recent frames into one picture. */
+  public static final String MERGE_EXTRA = "merge";
+
+  /*
+   * Whether to take the picture from the sharpest recent preview frame, with
+   * no shutter lag, instead of a full size picture.
+   */
+  public static final String INSTANT_EXTRA = "instant";
+
   private static final String LOG_PREFIX = "CameraActivity";
 
   private LayoutInflater inflater;
@@ -53,11 +63,28 @@ public class CameraActivity extends Activity implements PictureCallback {
 
   private Camera camera;
 
+  /* Saves pictures to the SkiPhone photo directory. */
+  private PhotoSaver photoSaver;
+
+  /* Keeps the recent preview frames, so a picture can be taken instantly. */
+  private FrameCapture frameCapture;
+
+  /*
+   * Whether pictures are taken from preview frames. Those are preview sized,
+   * so frames are only kept for the modes that ask for them.
+   */
+  private boolean isUsingFrames;
+
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
     requestWindowFeature(Window.FEATURE_NO_TITLE);
     inflater = (LayoutInflater) getSystemService(LAYOUT_INFLATER_SERVICE);
+    photoSaver = PhotoSaver.get(this);
+    frameCapture = new FrameCapture(photoSaver);
+    Intent intent = getIntent();
+    isUsingFrames = intent.getBooleanExtra(INSTANT_EXTRA, false)
+        || intent.getIntExtra(BURST_EXTRA, 1) > 1 || intent.getBooleanExtra(MERGE_EXTRA, false);
 
     orientationListener = new CameraOrientationListener(this);
     setupCameraView();
@@ -78,12 +105,14 @@ public class CameraActivity extends Activity implements PictureCallback {
   protected void onPause() {
     super.onPause();
 
-    // Let go of the camera while we're in the background.
+    // Let go of the camera and the sensors while we're in the background.
+    orientationListener.disable();
     releaseCamera();
   }
 
   private void releaseCamera() {
     if (cameraView != null && camera != null) {
+      frameCapture.stop();
       cameraView.setCamera(null);
       cancelAutoFocus();
       camera.release();
@@ -117,6 +146,10 @@ public class CameraActivity extends Activity implements PictureCallback {
     // Setup the camera and camera view.
     if (cameraView == null) {
       cameraView = new CameraView(this);
+      cameraView.setShakeNanos(getIntent().getLongExtra(SHAKE_NANOS_EXTRA, 0));
+      if (isUsingFrames) {
+        cameraView.setFrameCapture(frameCapture);
+      }
       camera = Camera.open();
       cameraView.setCamera(camera);
       setContentView(cameraView);
@@ -142,6 +175,25 @@ public class CameraActivity extends Activity implements PictureCallback {
   private void takePicture() {
     if (camera != null) {
       orientationListener.disable();
+
+      // Take the picture from the preview frames if that was asked for, so
+      // there's no shutter lag. Otherwise, or if there's no frame yet, take a
+      // full size picture.
+      if (isUsingFrames) {
+        int orientation = orientationListener.hasOrientation()
+            ? orientationListener.getOrientation() : 0;
+        int burstCount = getIntent().getIntExtra(BURST_EXTRA, 1);
+        if (burstCount > 1 && frameCapture.startBurst(burstCount, orientation, this)) {
+          return;
+        }
+        boolean isMerged = getIntent().getBooleanExtra(MERGE_EXTRA, false);
+        if (isMerged ? frameCapture.captureMerged(orientation)
+            : frameCapture.capture(orientation)) {
+          Toast.makeText(this, R.string.shake_exit, Toast.LENGTH_LONG).show();
+          return;
+        }
+      }
+
       if (orientationListener.hasOrientation()) {
         Camera.Parameters params = camera.getParameters();
         params.setRotation(orientationListener.getOrientation());
@@ -159,59 +211,79 @@ public class CameraActivity extends Activity implements PictureCallback {
   }
 
   /**
-   * Write the image to the sdcard.
+   * Hand the image to the saver and start the preview again.
    */
   public void onPictureTaken(byte[] data, Camera camera) {
     // Make sure autofocus is stopped.
     cancelAutoFocus();
 
+    // Write the image to the sdcard and add it to the gallery in the background.
+    photoSaver.save(data, System.currentTimeMillis());
+
+    // The preview stops when a picture is taken.
     try {
-      String path = Environment.getExternalStoragePublicDirectory(
-          Environment.DIRECTORY_PICTURES).toString();
-      
-      // Make sure photo directory exists.
-      File photoDir = new File(path + "/SkiPhone");
-      photoDir.mkdir();
-
-      // Write the image to the sdcard.
-      File photoFile = new File(String.format(photoDir.toString() + "/skiphone-%d.jpg",
-          System.currentTimeMillis()));
-      FileOutputStream fos = new FileOutputStream(photoFile);
-      fos.write(data);
-      fos.close();
-
-      // Notify the media store, so it shows up in the gallery.
-      MediaStore.Images.Media.insertImage(getContentResolver(), photoFile.getAbsolutePath(),
-          photoFile.getName(), photoFile.getName());
-      
-      // This seems to be needed to make the skiphone album show up.
-      Intent mediaScanIntent = new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE);
-      Uri contentUri = Uri.fromFile(photoFile);
-      mediaScanIntent.setData(contentUri);
-      this.sendBroadcast(mediaScanIntent);
-
-      // Show a toast with instructions on how to exit.
-      Toast.makeText(this, R.string.shake_exit, Toast.LENGTH_LONG).show();
-    } catch (FileNotFoundException e) {
-      e.printStackTrace();
-    } catch (IOException e) {
-      e.printStackTrace();
+      if (isUsingFrames) {
+        frameCapture.start(camera);
+      }
+      camera.startPreview();
+    } catch (RuntimeException e) {
+      Log.e(LOG_PREFIX, "Couldn't restart the preview.", e);
     }
+
+    // Show a toast with instructions on how to exit.
+    Toast.makeText(this, R.string.shake_exit, Toast.LENGTH_LONG).show();
   }
   
-  private final class CameraOrientationListener extends OrientationEventListener {
-    private int orientation = ORIENTATION_UNKNOWN;
+  public void onBurstDone(FrameCapture.Burst burst) {
+    DebugTrace.record(DebugTrace.BURST, burst.getSaved(), burst.getDropped(),
+        burst.getCaptureFps(), burst.getSaveFps(), burst.getPeakHeapBytes() / (1024f * 1024f));
+    Toast.makeText(this, getString(R.string.burst_done, burst.getSaved(), burst.getSaveFps()),
+        Toast.LENGTH_LONG).show();
+  }
+
+  /**
+   * Tracks which way up the phone is held, from the shared accelerometer
+   * stream. This does what OrientationEventListener does without registering
+   * a second accelerometer listener.
+   */
+  private static final class CameraOrientationListener implements SensorHub.Consumer {
+    /* The rate OrientationEventListener uses. */
+    private static final int SAMPLING_PERIOD_US = 200000;
+
+    private final SensorHub sensorHub;
+
+    /* Written on the sensor hub's thread. */
+    private volatile int orientation = OrientationEventListener.ORIENTATION_UNKNOWN;
 
     private CameraOrientationListener(Context context) {
-      super(context);
+      sensorHub = SensorHub.get(context);
+    }
+
+    public void enable() {
+      sensorHub.register(this, Sensor.TYPE_ACCELEROMETER, SAMPLING_PERIOD_US, 0);
+    }
+
+    public void disable() {
+      sensorHub.unregister(this, Sensor.TYPE_ACCELEROMETER);
     }
 
-    @Override
-    public void onOrientationChanged(int orientation) {
-      if (orientation == ORIENTATION_UNKNOWN)
+    public void onSensorChanged(SensorEvent event) {
+      float x = -event.values[0];
+      float y = -event.values[1];
+      float z = -event.values[2];
+      // Don't trust the angle if the phone is closer to flat than upright.
+      if ((x * x + y * y) * 4 < z * z) {
         return;
+      }
+      int angle = 90 - Math.round((float) Math.toDegrees(Math.atan2(-y, x)));
+      while (angle >= 360) {
+        angle -= 360;
+      }
+      while (angle < 0) {
+        angle += 360;
+      }
       // Round to the nearest right angle.
-      this.orientation = (((orientation + 115) / 90) * 90) % 360;
+      orientation = (((angle + 115) / 90) * 90) % 360;
     }
 
     public int getOrientation() {
@@ -219,7 +291,7 @@ public class CameraActivity extends Activity implements PictureCallback {
     }
 
     public boolean hasOrientation() {
-      return orientation != ORIENTATION_UNKNOWN;
+      return orientation != OrientationEventListener.ORIENTATION_UNKNOWN;
     }
   }
 
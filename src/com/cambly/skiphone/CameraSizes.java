@@ -0,0 +1,92 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Chooses camera preview and picture sizes. Sizes are passed as parallel
+ * width and height arrays so this can be used without the camera APIs.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class CameraSizes {
+  private static final double ASPECT_TOLERANCE = 0.1;
+
+  /**
+   * Returns the index of the preview size closest to the given height with
+   * an aspect ratio close to the target ratio, ignoring the ratio if no size
+   * matches it. Returns -1 if there are no sizes.
+   */
+  public static int getOptimalPreviewSize(int[] widths, int[] heights, int height,
+      double targetRatio) {
+    int optimalSize = -1;
+    int minDiff = Integer.MAX_VALUE;
+
+    // Try to find a size match for the aspect ratio and size
+    for (int i = 0; i < widths.length; i++) {
+      double ratio = (double) widths[i] / heights[i];
+      if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
+        continue;
+      if (Math.abs(heights[i] - height) < minDiff) {
+        optimalSize = i;
+        minDiff = Math.abs(heights[i] - height);
+      }
+    }
+
+    // Cannot find a match for the aspect ratio, ignore the requirement
+    if (optimalSize == -1) {
+      for (int i = 0; i < widths.length; i++) {
+        if (Math.abs(heights[i] - height) < minDiff) {
+          optimalSize = i;
+          minDiff = Math.abs(heights[i] - height);
+        }
+      }
+    }
+    return optimalSize;
+  }
+
+  /**
+   * Returns the index of the largest picture size with an aspect ratio close
+   * to that of the given width and height, ignoring the ratio if no size
+   * matches it. Returns -1 if there are no sizes.
+   */
+  public static int getOptimalPictureSize(int[] widths, int[] heights, int width, int height) {
+    double targetRatio = (double) width / height;
+    int optimalSize = -1;
+    int maxHeight = 0;
+
+    // Try to find the largest match for the aspect ratio.
+    for (int i = 0; i < widths.length; i++) {
+      double ratio = (double) widths[i] / heights[i];
+      if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
+        continue;
+      if (heights[i] > maxHeight) {
+        optimalSize = i;
+        maxHeight = heights[i];
+      }
+    }
+
+    // Cannot find a match for the aspect ratio, ignore the requirement
+    if (optimalSize == -1) {
+      for (int i = 0; i < widths.length; i++) {
+        if (heights[i] > maxHeight) {
+          optimalSize = i;
+          maxHeight = heights[i];
+        }
+      }
+    }
+    return optimalSize;
+  }
+}
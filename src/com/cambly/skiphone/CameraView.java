@@ -48,14 +48,27 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
 
   /* Preview sizes supported by the camera. */
   private List<Size> supportedPreviewSizes;
+  private int[] previewWidths;
+  private int[] previewHeights;
 
   /* Image sizes supported by the camera. */
   private List<Size> supportedPictureSizes;
+  private int[] pictureWidths;
+  private int[] pictureHeights;
 
   private Size previewSize;
 
   private Size pictureSize;
 
+  /*
+   * When the shake that opened the camera was detected, by System.nanoTime(),
+   * or 0 once the preview has started.
+   */
+  private long shakeNanos = 0;
+
+  /* Keeps the recent preview frames, or null. */
+  private FrameCapture frameCapture;
+
   public CameraView(Context context) {
     super(context);
 
@@ -69,6 +82,21 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     holder.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
   }
 
+  /**
+   * Record the time from the given shake to the preview starting.
+   */
+  public void setShakeNanos(long shakeNanos) {
+    this.shakeNanos = shakeNanos;
+  }
+
+  /**
+   * Keep the recent preview frames in the given capture whenever the preview
+   * starts.
+   */
+  public void setFrameCapture(FrameCapture frameCapture) {
+    this.frameCapture = frameCapture;
+  }
+
   /**
    * Set the camera used by the view.
    */
@@ -77,7 +105,15 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     if (camera != null) {
       Camera.Parameters parameters = camera.getParameters();
       supportedPreviewSizes = parameters.getSupportedPreviewSizes();
+      if (supportedPreviewSizes != null) {
+        previewWidths = widths(supportedPreviewSizes);
+        previewHeights = heights(supportedPreviewSizes);
+      }
       supportedPictureSizes = parameters.getSupportedPictureSizes();
+      if (supportedPictureSizes != null) {
+        pictureWidths = widths(supportedPictureSizes);
+        pictureHeights = heights(supportedPictureSizes);
+      }
       requestLayout();
     }
   }
@@ -89,11 +125,12 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     final int height = resolveSize(getSuggestedMinimumHeight(), heightMeasureSpec);
     setMeasuredDimension(width, height);
 
-    if (supportedPictureSizes != null) {
-      pictureSize = getOptimalPictureSize(supportedPictureSizes, width, height);
-      if (supportedPreviewSizes != null) {
-        previewSize = getOptimalPreviewSize(supportedPreviewSizes, width, height,
-            (double) pictureSize.width / (double) pictureSize.height);
+    if (supportedPictureSizes != null && !supportedPictureSizes.isEmpty()) {
+      pictureSize = supportedPictureSizes.get(CameraSizes.getOptimalPictureSize(pictureWidths,
+          pictureHeights, width, height));
+      if (supportedPreviewSizes != null && !supportedPreviewSizes.isEmpty()) {
+        previewSize = supportedPreviewSizes.get(CameraSizes.getOptimalPreviewSize(previewWidths,
+            previewHeights, height, (double) pictureSize.width / (double) pictureSize.height));
       }
     }
   }
@@ -144,73 +181,20 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     }
   }
 
-  private Size getOptimalPreviewSize(List<Size> sizes, int width, int height, double targetRatio) {
-    final double ASPECT_TOLERANCE = 0.1;
-    if (sizes == null) {
-      return null;
+  private static int[] widths(List<Size> sizes) {
+    int[] widths = new int[sizes.size()];
+    for (int i = 0; i < widths.length; i++) {
+      widths[i] = sizes.get(i).width;
     }
-
-    Size optimalSize = null;
-    double minDiff = Double.MAX_VALUE;
-
-    int targetHeight = height;
-
-    // Try to find a size match for the aspect ratio and size
-    for (Size size : sizes) {
-      double ratio = (double) size.width / size.height;
-      if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
-        continue;
-      if (Math.abs(size.height - targetHeight) < minDiff) {
-        optimalSize = size;
-        minDiff = Math.abs(size.height - targetHeight);
-      }
-    }
-
-    // Cannot find a match for the aspect ratio, ignore the requirement
-    if (optimalSize == null) {
-      minDiff = Double.MAX_VALUE;
-      for (Size size : sizes) {
-        if (Math.abs(size.height - targetHeight) < minDiff) {
-          optimalSize = size;
-          minDiff = Math.abs(size.height - targetHeight);
-        }
-      }
-    }
-    return optimalSize;
+    return widths;
   }
 
-  private Size getOptimalPictureSize(List<Size> sizes, int width, int height) {
-    final double ASPECT_TOLERANCE = 0.1;
-    double targetRatio = (double) width / height;
-    if (sizes == null) {
-      return null;
+  private static int[] heights(List<Size> sizes) {
+    int[] heights = new int[sizes.size()];
+    for (int i = 0; i < heights.length; i++) {
+      heights[i] = sizes.get(i).height;
     }
-
-    Size optimalSize = null;
-    int maxHeight = 0;
-
-    // Try to find the largest match for the aspect ratio.
-    for (Size size : sizes) {
-      double ratio = (double) size.width / size.height;
-      if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
-        continue;
-      if (size.height > maxHeight) {
-        optimalSize = size;
-        maxHeight = size.height;
-      }
-    }
-
-    // Cannot find a match for the aspect ratio, ignore the requirement
-    if (optimalSize == null) {
-      maxHeight = 0;
-      for (Size size : sizes) {
-        if (size.height > maxHeight) {
-          optimalSize = size;
-          maxHeight = size.height;
-        }
-      }
-    }
-    return optimalSize;
+    return heights;
   }
 
   public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
@@ -224,8 +208,8 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     parameters.setPreviewSize(previewSize.width, previewSize.height);
     parameters.setPictureSize(pictureSize.width, pictureSize.height);
     parameters.setJpegQuality(90);
-    Log.d(LOG_PREFIX, "Preview: " + previewSize.width + "," + previewSize.height + " Picture: "
-        + pictureSize.width + "," + pictureSize.height);
+    DebugTrace.record(DebugTrace.CAMERA_SIZES, previewSize.width, previewSize.height,
+        pictureSize.width, pictureSize.height, 0);
     requestLayout();
     try {
       camera.cancelAutoFocus();
@@ -238,9 +222,16 @@ public class CameraView extends RelativeLayout implements SurfaceHolder.Callback
     try {
       camera.setParameters(parameters);
     } catch (RuntimeException e) {
-      e.printStackTrace();
+      Log.e(LOG_PREFIX, "Couldn't set camera parameters.", e);
+    }
+    if (frameCapture != null) {
+      frameCapture.start(camera);
     }
     camera.startPreview();
+    if (shakeNanos != 0) {
+      GestureLatency.SHAKE_TO_PREVIEW.record(System.nanoTime() - shakeNanos);
+      shakeNanos = 0;
+    }
 
     // Give the user a couple seconds to aim and then focus the camera.
     DelayedCameraFocuser focuser = new DelayedCameraFocuser(camera);
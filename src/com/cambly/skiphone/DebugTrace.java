@@ -0,0 +1,220 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A debugging trace of what the detector, service and camera are doing. It
+ * replaces per-reading logging, which built strings for every sensor reading
+ * even in release builds.
+ * 
+ * Tracing is off by default, and recording is then a single volatile read.
+ * When it is on, each event is written as a fixed-size record of primitives
+ * into a preallocated ring buffer, without locking or allocating. Records are
+ * only turned into text when the trace is dumped:
+ * 
+ * <pre>
+ * adb shell dumpsys activity service com.cambly.skiphone/.SkiPhoneService trace on
+ * adb shell dumpsys activity service com.cambly.skiphone/.SkiPhoneService trace
+ * </pre>
+ * 
+ * A record being written while the trace is dumped may be printed half
+ * updated. That is fine for a debugging aid.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class DebugTrace {
+  /* Events. The arguments each one takes are listed with it. */
+
+  /* An accelerometer reading. accuracy; x, y, z. */
+  public static final int SENSOR_READING = 0;
+
+  /* The analyzer's windowed means. xy, xz. */
+  public static final int SENSOR_MEANS = 1;
+
+  /* A gesture was detected. gesture; xy, xz. */
+  public static final int GESTURE = 2;
+
+  /* The accelerometer accuracy changed. accuracy. */
+  public static final int SENSOR_ACCURACY = 3;
+
+  /* The sampling rate changed. rate. */
+  public static final int SAMPLING_RATE = 4;
+
+  /* The detector switched to new thresholds. ; vertical, horizontal. */
+  public static final int THRESHOLDS = 5;
+
+  /* The detector stopped. ms at the low rate, ms at the high rate. */
+  public static final int RATE_TIMES = 6;
+
+  /* The service got a gesture. gesture. */
+  public static final int SERVICE_GESTURE = 7;
+
+  /* The service has no shake model asset. */
+  public static final int NO_SHAKE_MODEL = 8;
+
+  /* The camera preview is starting. preview width, height; picture width, height. */
+  public static final int CAMERA_SIZES = 9;
+
+  /* The phone went into or came out of a pocket. 1 if pocketed. */
+  public static final int POCKET = 10;
+
+  /*
+   * A burst was saved. photos saved, frames dropped; frames taken per second,
+   * photos saved per second, peak heap in MB.
+   */
+  public static final int BURST = 11;
+
+  /* A frame was picked for sharpness. candidates, age picked; its score, the newest's score. */
+  public static final int SHARPEST = 12;
+
+  /* The motion gate disarmed the shake detector after the idle timeout. */
+  public static final int GATE_DISARMED = 13;
+
+  /* The motion gate armed the detector again. 1 for significant motion, 0 if woken. */
+  public static final int GATE_ARMED = 14;
+
+  /* The motion gate stopped. ms armed, ms disarmed in total. */
+  public static final int GATE_TIMES = 15;
+
+  /* The service compiled an action table. mask of the gestures it detects. */
+  public static final int ACTION_TABLE = 16;
+
+  /* Number of records kept. Must be a power of two. */
+  private static final int CAPACITY = 4096;
+
+  private static volatile boolean isEnabled = false;
+
+  /* Index of the next record to write. Wraps around. */
+  private static final AtomicInteger next = new AtomicInteger();
+
+  /* The records, indexed by slot. */
+  private static final long[] nanos = new long[CAPACITY];
+  private static final int[] events = new int[CAPACITY];
+  private static final int[] ints = new int[2 * CAPACITY];
+  private static final float[] floats = new float[3 * CAPACITY];
+
+  public static boolean isEnabled() {
+    return isEnabled;
+  }
+
+  /**
+   * Turn tracing on or off. Turning it on clears the trace.
+   */
+  public static void setEnabled(boolean enabled) {
+    if (enabled && !isEnabled) {
+      next.set(0);
+    }
+    isEnabled = enabled;
+  }
+
+  public static void record(int event) {
+    record(event, 0, 0, 0, 0, 0);
+  }
+
+  public static void record(int event, int i0) {
+    record(event, i0, 0, 0, 0, 0);
+  }
+
+  public static void record(int event, int i0, int i1) {
+    record(event, i0, i1, 0, 0, 0);
+  }
+
+  /**
+   * Record an event with up to two int and three float arguments. Does
+   * nothing if tracing is off.
+   */
+  public static void record(int event, int i0, int i1, float f0, float f1, float f2) {
+    if (!isEnabled) {
+      return;
+    }
+    int slot = next.getAndIncrement() & (CAPACITY - 1);
+    nanos[slot] = System.nanoTime();
+    events[slot] = event;
+    ints[2 * slot] = i0;
+    ints[2 * slot + 1] = i1;
+    floats[3 * slot] = f0;
+    floats[3 * slot + 1] = f1;
+    floats[3 * slot + 2] = f2;
+  }
+
+  /**
+   * Print the trace, oldest record first, with times relative to the newest.
+   */
+  public static void dump(PrintWriter writer) {
+    writer.println("Tracing is " + (isEnabled ? "on." : "off."));
+    int end = next.get();
+    int start = Math.max(0, end - CAPACITY);
+    if (end == start) {
+      return;
+    }
+    long lastNanos = nanos[(end - 1) & (CAPACITY - 1)];
+    for (int i = start; i < end; i++) {
+      int slot = i & (CAPACITY - 1);
+      writer.println(String.format("%+10.3fms %s", (nanos[slot] - lastNanos) / 1000000.0,
+          describe(events[slot], ints[2 * slot], ints[2 * slot + 1], floats[3 * slot],
+              floats[3 * slot + 1], floats[3 * slot + 2])));
+    }
+  }
+
+  private static String describe(int event, int i0, int i1, float f0, float f1, float f2) {
+    switch (event) {
+    case SENSOR_READING:
+      return String.format("reading x=%.2f y=%.2f z=%.2f accuracy=%d", f0, f1, f2, i0);
+    case SENSOR_MEANS:
+      return String.format("means xy=%.1f xz=%.1f", f0, f1);
+    case GESTURE:
+      return String.format("gesture %s v=%.1f h=%.1f", gestureName(i0), f0, f1);
+    case SENSOR_ACCURACY:
+      return "accuracy " + i0;
+    case SAMPLING_RATE:
+      return "sampling rate " + i0;
+    case THRESHOLDS:
+      return String.format("thresholds v=%.1f h=%.1f", f0, f1);
+    case RATE_TIMES:
+      return "stopped after " + i0 + "ms at low rate, " + i1 + "ms at high rate";
+    case SERVICE_GESTURE:
+      return "service gesture " + gestureName(i0);
+    case NO_SHAKE_MODEL:
+      return "no shake model, using thresholds";
+    case CAMERA_SIZES:
+      return String.format("camera preview %dx%d picture %.0fx%.0f", i0, i1, f0, f1);
+    case POCKET:
+      return i0 != 0 ? "pocketed" : "out of pocket";
+    case BURST:
+      return String.format("burst saved %d dropped %d capture %.1ffps save %.1ffps heap %.1fMB",
+          i0, i1, f0, f1, f2);
+    case SHARPEST:
+      return String.format("picked frame %d of %d score %.1f newest %.1f", i1, i0, f0, f1);
+    case GATE_DISARMED:
+      return "motion gate disarmed";
+    case GATE_ARMED:
+      return i0 != 0 ? "motion gate armed by significant motion" : "motion gate woken";
+    case GATE_TIMES:
+      return "motion gate stopped after " + i0 + "ms armed, " + i1 + "ms disarmed";
+    case ACTION_TABLE:
+      return "action table detecting gestures 0x" + Integer.toHexString(i0);
+    default:
+      return "event " + event;
+    }
+  }
+
+  private static String gestureName(int gesture) {
+    return gesture >= 0 && gesture < Gesture.COUNT ? Gesture.name(gesture) : "gesture " + gesture;
+  }
+}
@@ -0,0 +1,48 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Recognizes two shakes, in any direction, within a few seconds of each other.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class DoubleShakeRecognizer extends GestureRecognizer {
+  /* The longest time between the two shakes, in ns. */
+  private static final long WINDOW_NANOS = 4000L * 1000 * 1000;
+
+  private boolean hasFirstShake = false;
+  private long firstShakeNanos;
+
+  @Override
+  public int onFeatures(MotionFeatures features) {
+    if (features.shake == Gesture.NONE) {
+      return Gesture.NONE;
+    }
+    if (hasFirstShake && features.timestampNanos - firstShakeNanos <= WINDOW_NANOS) {
+      hasFirstShake = false;
+      return Gesture.DOUBLE_SHAKE;
+    }
+    hasFirstShake = true;
+    firstShakeNanos = features.timestampNanos;
+    return Gesture.NONE;
+  }
+
+  @Override
+  public void reset() {
+    hasFirstShake = false;
+  }
+}
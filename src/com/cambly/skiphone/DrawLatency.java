@@ -0,0 +1,111 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.os.Build;
+import android.view.View;
+import android.view.ViewTreeObserver;
+
+/**
+ * Records the time from an event, such as the screen turning on, to a view
+ * being drawn. On Jelly Bean and later this is the next time the view's tree
+ * is drawn, seen by a ViewTreeObserver.OnDrawListener. Earlier platforms have
+ * no draw callback, so the time to a runnable posted to the view is recorded
+ * instead, which usually runs just before the first draw.
+ * 
+ * Must be used on the view's thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class DrawLatency {
+  private final View view;
+  private final LatencyHistogram histogram;
+
+  /* When the event happened, by System.nanoTime(), while a draw is awaited. */
+  private long startNanos;
+  private boolean isPending = false;
+
+  /* Listens for draws on Jelly Bean and later. Created when first needed. */
+  private DrawListener drawListener;
+  private boolean isListening = false;
+
+  /*
+   * Records the latency before Jelly Bean, and stops listening after the draw
+   * on Jelly Bean and later.
+   */
+  private final Runnable postedCallback = new Runnable() {
+    public void run() {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+        onDrawn();
+      } else {
+        stopListening();
+      }
+    }
+  };
+
+  public DrawLatency(View view, LatencyHistogram histogram) {
+    this.view = view;
+    this.histogram = histogram;
+  }
+
+  /**
+   * Record the time from the given start to the view's next draw. Replaces a
+   * start that hasn't been drawn yet.
+   * 
+   * @param startNanos when the event happened, by System.nanoTime()
+   */
+  public void recordNextDraw(long startNanos) {
+    this.startNanos = startNanos;
+    isPending = true;
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      view.post(postedCallback);
+      return;
+    }
+    if (drawListener == null) {
+      drawListener = new DrawListener();
+    }
+    if (!isListening) {
+      view.getViewTreeObserver().addOnDrawListener(drawListener);
+      isListening = true;
+    }
+  }
+
+  private void onDrawn() {
+    if (isPending) {
+      isPending = false;
+      histogram.record(System.nanoTime() - startNanos);
+    }
+  }
+
+  private void stopListening() {
+    ViewTreeObserver observer = view.getViewTreeObserver();
+    if (isListening && observer.isAlive()) {
+      observer.removeOnDrawListener(drawListener);
+      isListening = false;
+    }
+  }
+
+  /**
+   * Only loaded on Jelly Bean and later, which have OnDrawListener.
+   */
+  private class DrawListener implements ViewTreeObserver.OnDrawListener {
+    public void onDraw() {
+      onDrawn();
+      // Listeners can't be removed while the tree is being drawn.
+      view.post(postedCallback);
+    }
+  }
+}
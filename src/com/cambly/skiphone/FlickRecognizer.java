@@ -0,0 +1,90 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Recognizes a flick: a single short spike in acceleration from a phone that
+ * was otherwise steady. The flick is only reported once the phone has stayed
+ * calm for a moment afterwards, so the spikes in a shake don't count.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class FlickRecognizer extends GestureRecognizer {
+  /* Squared acceleration above which a reading is a spike (20 m/s^2). */
+  private static final float SPIKE_SQUARED = 400.0f;
+
+  /* The longest a spike can last and still be a flick, in ns. */
+  private static final long MAX_SPIKE_NANOS = 150L * 1000 * 1000;
+
+  /* How long the phone must stay calm before and after a flick, in ns. */
+  private static final long CALM_NANOS = 300L * 1000 * 1000;
+
+  private static final int CALM = 0;
+  private static final int SPIKE = 1;
+  private static final int CONFIRMING = 2;
+  private static final int SETTLING = 3;
+
+  private int state = CALM;
+
+  /* When the current state was entered. */
+  private long stateNanos = 0;
+
+  @Override
+  public int onFeatures(MotionFeatures features) {
+    long now = features.timestampNanos;
+    boolean isSpike = features.magnitudeSquared > SPIKE_SQUARED;
+    switch (state) {
+    case CALM:
+      if (isSpike) {
+        setState(SPIKE, now);
+      }
+      break;
+    case SPIKE:
+      if (!isSpike) {
+        setState(now - stateNanos <= MAX_SPIKE_NANOS ? CONFIRMING : SETTLING, now);
+      }
+      break;
+    case CONFIRMING:
+      if (isSpike) {
+        // More than one spike, so it's probably a shake.
+        setState(SETTLING, now);
+      } else if (now - stateNanos >= CALM_NANOS) {
+        setState(CALM, now);
+        return Gesture.FLICK;
+      }
+      break;
+    case SETTLING:
+      if (isSpike) {
+        stateNanos = now;
+      } else if (now - stateNanos >= CALM_NANOS) {
+        setState(CALM, now);
+      }
+      break;
+    }
+    return Gesture.NONE;
+  }
+
+  @Override
+  public void reset() {
+    state = CALM;
+    stateNanos = 0;
+  }
+
+  private void setState(int state, long now) {
+    this.state = state;
+    stateNanos = now;
+  }
+}
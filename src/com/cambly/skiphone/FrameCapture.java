@@ -0,0 +1,429 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.hardware.Camera.PreviewCallback;
+import android.os.Handler;
+
+/**
+ * Keeps the last few preview frames in a {@link FrameRing}, so a picture can
+ * be taken the instant the shutter fires instead of after a full capture
+ * sequence. The camera fills buffers from the ring's pool through
+ * setPreviewCallbackWithBuffer(), so the preview runs without allocating.
+ * 
+ * A picture is taken from the sharpest frame in the ring, scored by a
+ * {@link SharpnessScorer}, so a bump on the slope doesn't blur it. A merged
+ * picture combines every frame in the ring with a {@link FrameMerger},
+ * aligned to the sharpest, for less noise. Either way the frames are taken
+ * out of the ring and scored by the saver's encoders, so the camera thread
+ * only hands them over.
+ * 
+ * A burst takes a frame whenever one arrives and the saver keeps up. While
+ * as many frames as the ring can spare are still being saved, new frames
+ * wait in the ring instead, so a slow sdcard can't fill memory with queued
+ * JPEGs. Once the saver catches up, the sharpest of the frames that waited is
+ * taken and the rest are dropped. A frame's buffer is handed back to the
+ * camera as soon as the frame has been encoded, since the camera stops
+ * delivering frames once every buffer is in the ring or being saved.
+ * 
+ * Pictures taken this way are preview sized, so they're only taken when an
+ * instant, burst or merged picture is asked for. Frames are delivered on the
+ * thread that opened the camera, which must have a looper.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class FrameCapture implements PreviewCallback {
+  /**
+   * Told when a burst is over and all of its photos have been saved. Called
+   * on the thread that opened the camera.
+   */
+  public interface BurstListener {
+    void onBurstDone(Burst burst);
+  }
+
+  /**
+   * A burst in progress, and its statistics once it is done.
+   */
+  public static class Burst implements PhotoSaver.Listener {
+    private final int count;
+    private final int orientation;
+    private final BurstListener listener;
+    private final Handler handler;
+    private final long startNanos = System.nanoTime();
+
+    /* Only used on the camera thread. */
+    private int seen = 0;
+    private int captured = 0;
+
+    /* Synchronized on the burst. */
+    private boolean isCaptureDone = false;
+    private long captureNanos;
+    private int saved = 0;
+    private int failed = 0;
+    private long doneNanos;
+    private long peakHeapBytes = 0;
+
+    private final Runnable doneCallback = new Runnable() {
+      public void run() {
+        listener.onBurstDone(Burst.this);
+      }
+    };
+
+    private Burst(int count, int orientation, BurstListener listener) {
+      this.count = count;
+      this.orientation = orientation;
+      this.listener = listener;
+      handler = new Handler();
+      sampleHeap();
+    }
+
+    public void onFrameSaved(boolean isSaved) {
+      synchronized (this) {
+        if (isSaved) {
+          saved++;
+        } else {
+          failed++;
+        }
+        sampleHeap();
+      }
+      checkDone();
+    }
+
+    /**
+     * Called on the camera thread once no more frames will be taken.
+     */
+    private void finishCapture() {
+      synchronized (this) {
+        isCaptureDone = true;
+        captureNanos = System.nanoTime() - startNanos;
+      }
+      checkDone();
+    }
+
+    private void checkDone() {
+      synchronized (this) {
+        if (!isCaptureDone || saved + failed < captured || doneNanos != 0) {
+          return;
+        }
+        doneNanos = System.nanoTime() - startNanos;
+      }
+      handler.post(doneCallback);
+    }
+
+    private synchronized void sampleHeap() {
+      Runtime runtime = Runtime.getRuntime();
+      peakHeapBytes = Math.max(peakHeapBytes, runtime.totalMemory() - runtime.freeMemory());
+    }
+
+    /**
+     * Returns the number of frames taken.
+     */
+    public int getCaptured() {
+      return captured;
+    }
+
+    /**
+     * Returns the number of frames that arrived during the burst and weren't
+     * taken.
+     */
+    public int getDropped() {
+      return seen - captured;
+    }
+
+    public synchronized int getSaved() {
+      return saved;
+    }
+
+    /**
+     * Returns the most heap in use at any point in the burst, in bytes.
+     */
+    public synchronized long getPeakHeapBytes() {
+      return peakHeapBytes;
+    }
+
+    /**
+     * Returns the rate frames were taken at, in frames per second.
+     */
+    public synchronized float getCaptureFps() {
+      return captureNanos == 0 ? 0 : captured * 1e9f / captureNanos;
+    }
+
+    /**
+     * Returns the rate photos were saved at, from the start of the burst to
+     * the last one being saved, in photos per second.
+     */
+    public synchronized float getSaveFps() {
+      return doneNanos == 0 ? 0 : saved * 1e9f / doneNanos;
+    }
+  }
+
+  /* How many recent frames to keep, and how many buffers the camera fills meanwhile. */
+  private static final int RING_FRAMES = 4;
+  private static final int SPARE_FRAMES = 2;
+
+  private final PhotoSaver photoSaver;
+
+  /* The camera delivering frames, or null if capture is stopped. */
+  private Camera camera;
+
+  /* Posts buffers released on the encoder threads back to the camera thread. */
+  private Handler handler;
+
+  private final Runnable feedCallback = new Runnable() {
+    public void run() {
+      if (camera != null) {
+        feed();
+      }
+    }
+  };
+
+  private final Runnable releaseCallback = new Runnable() {
+    public void run() {
+      handler.post(feedCallback);
+    }
+  };
+
+  /* Holds the frames. Kept across restarts while the preview size stays the same. */
+  private FrameRing ring;
+  private int width;
+  private int height;
+
+  /* The most frames that may be being saved at once while bursting. */
+  private final int maxPendingFrames;
+
+  /* The burst in progress, or null. */
+  private Burst burst;
+
+  /* The last time a photo was named after, so each gets a different name. */
+  private long lastTimeMillis = 0;
+
+  /* Score and merge the frames. Shared by every capture, since their threads never stop. */
+  private static SharpnessScorer scorer;
+  private static FrameMerger merger;
+
+  /* The frames that arrived since one was last taken, at most the whole ring. */
+  private int newFrames = 0;
+
+  /* The frames being handed to the saver. */
+  private final byte[][] candidates = new byte[RING_FRAMES][];
+
+  public FrameCapture(PhotoSaver photoSaver) {
+    this.photoSaver = photoSaver;
+    // Leave the camera its spare buffers, however many cores there are.
+    maxPendingFrames = Math.min(photoSaver.getEncoderCount(), RING_FRAMES);
+  }
+
+  /**
+   * Start keeping frames from the camera's preview. Call after the preview
+   * size is set and before the preview starts. Does nothing if the preview
+   * format can't be encoded as a JPEG.
+   */
+  public void start(Camera camera) {
+    stop();
+    Camera.Parameters parameters = camera.getParameters();
+    int format = parameters.getPreviewFormat();
+    if (format != ImageFormat.NV21) {
+      return;
+    }
+    Camera.Size size = parameters.getPreviewSize();
+    int width = size.width;
+    int height = size.height;
+    int frameSize = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+    if (ring == null || ring.getFrameSize() != frameSize) {
+      ring = new FrameRing(RING_FRAMES, SPARE_FRAMES, frameSize);
+    } else {
+      ring.reset();
+    }
+    if (handler == null) {
+      handler = new Handler();
+    }
+    ring.setReleaseCallback(releaseCallback);
+    this.camera = camera;
+    this.width = width;
+    this.height = height;
+    newFrames = 0;
+    camera.setPreviewCallbackWithBuffer(this);
+    feed();
+  }
+
+  /**
+   * Stop keeping frames. Must be called before the camera is released.
+   */
+  public void stop() {
+    if (camera != null) {
+      camera.setPreviewCallbackWithBuffer(null);
+      camera = null;
+      ring.reset();
+    }
+    if (burst != null) {
+      burst.finishCapture();
+      burst = null;
+    }
+  }
+
+  public void onPreviewFrame(byte[] data, Camera camera) {
+    if (data == null || camera != this.camera) {
+      return;
+    }
+    ring.add(data, System.nanoTime());
+    newFrames = Math.min(newFrames + 1, RING_FRAMES);
+    if (burst != null) {
+      captureBurstFrame();
+    }
+    feed();
+  }
+
+  /**
+   * Take the sharpest of the new frames for the burst, unless the saver is
+   * behind.
+   */
+  private void captureBurstFrame() {
+    burst.seen++;
+    if (photoSaver.getPendingFrames() >= maxPendingFrames) {
+      return;
+    }
+    int count = takeNewest(Math.min(newFrames, ring.size()));
+    newFrames = 0;
+    boolean isSaved = photoSaver.saveSharpestFrame(ring, candidates, count, width, height,
+        nextTimeMillis(), burst.orientation, getScorer(), burst);
+    clearCandidates(count);
+    if (isSaved) {
+      burst.captured++;
+      burst.sampleHeap();
+    }
+    if (burst.captured == burst.count) {
+      burst.finishCapture();
+      burst = null;
+    }
+  }
+
+  /**
+   * Hand the camera every free buffer, including the one freed by the newest
+   * frame and any released after encoding. Called on the camera thread.
+   */
+  private void feed() {
+    byte[] buffer;
+    while ((buffer = ring.pollFree()) != null) {
+      camera.addCallbackBuffer(buffer);
+    }
+  }
+
+  /**
+   * Take the given number of newest frames out of the ring into candidates,
+   * newest first, and return the number.
+   */
+  private int takeNewest(int count) {
+    // Taking the newest each time leaves the frames in age order.
+    for (int age = 0; age < count; age++) {
+      candidates[age] = ring.take(0);
+    }
+    return count;
+  }
+
+  private void clearCandidates(int count) {
+    for (int age = 0; age < count; age++) {
+      candidates[age] = null;
+    }
+  }
+
+  private static synchronized SharpnessScorer getScorer() {
+    if (scorer == null) {
+      scorer = new SharpnessScorer(Runtime.getRuntime().availableProcessors(), RING_FRAMES);
+    }
+    return scorer;
+  }
+
+  private static synchronized FrameMerger getMerger() {
+    if (merger == null) {
+      merger = new FrameMerger(Runtime.getRuntime().availableProcessors(), RING_FRAMES);
+    }
+    return merger;
+  }
+
+  /**
+   * Take a picture from the sharpest frame in the ring and save it in the
+   * background. Returns false if there's no frame to take it from.
+   * 
+   * @param orientation the rotation to record with the photo in degrees
+   */
+  public boolean capture(int orientation) {
+    if (camera == null) {
+      return false;
+    }
+    if (ring.size() == 0) {
+      return false;
+    }
+    int count = takeNewest(ring.size());
+    newFrames = 0;
+    boolean isSaved = photoSaver.saveSharpestFrame(ring, candidates, count, width, height,
+        nextTimeMillis(), orientation, getScorer(), null);
+    clearCandidates(count);
+    return isSaved;
+  }
+
+  /**
+   * Take a picture by merging every frame in the ring and save it in the
+   * background. Takes it from a single frame if there's only one. Returns
+   * false if there's no frame to take it from.
+   * 
+   * @param orientation the rotation to record with the photo in degrees
+   */
+  public boolean captureMerged(int orientation) {
+    if (camera == null) {
+      return false;
+    }
+    int count = ring.size();
+    if (count < 2) {
+      return capture(orientation);
+    }
+    takeNewest(count);
+    newFrames = 0;
+    boolean isSaved = photoSaver.saveMergedFrames(ring, candidates, count, width, height,
+        nextTimeMillis(), orientation, getScorer(), getMerger());
+    clearCandidates(count);
+    return isSaved;
+  }
+
+  /**
+   * Take a burst of pictures from the frames that arrive from now on. Returns
+   * false if frames aren't being kept. A burst already in progress is ended.
+   * 
+   * @param count the number of pictures to take
+   * @param orientation the rotation to record with the photos in degrees
+   */
+  public boolean startBurst(int count, int orientation, BurstListener listener) {
+    if (camera == null) {
+      return false;
+    }
+    if (burst != null) {
+      burst.finishCapture();
+    }
+    burst = new Burst(count, orientation, listener);
+    newFrames = 0;
+    return true;
+  }
+
+  /**
+   * Returns the current time, or a later one if a photo has already been
+   * named after it.
+   */
+  private long nextTimeMillis() {
+    lastTimeMillis = Math.max(System.currentTimeMillis(), lastTimeMillis + 1);
+    return lastTimeMillis;
+  }
+}
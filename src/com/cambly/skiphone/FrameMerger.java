@@ -0,0 +1,373 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Merges a few NV21 frames of the same scene into one with less noise. Only
+ * depends on the JDK, so it can be benchmarked without a device.
+ * 
+ * Each frame is first aligned to the reference frame by a global
+ * translation: the luma planes are shrunk by BLOCK in each direction and
+ * block matched over a small search window, then the match is refined at
+ * full resolution on a sparse grid. The frames are then averaged pixel by
+ * pixel in bands of rows on a pool of threads, one per core. Samples that
+ * differ too much from the reference are left out, so moving skiers don't
+ * leave ghosts. Clipped samples are left out where another frame saw detail,
+ * which recovers some of the highlights that blow out on snow.
+ * 
+ * Every buffer is allocated once and reused while the frame size stays the
+ * same. Merging is synchronized, and the result is only valid until the next
+ * merge.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class FrameMerger {
+  /* How much the luma planes are shrunk by for the coarse search. */
+  private static final int BLOCK = 4;
+
+  /* How far the coarse search looks, in shrunk pixels, and the fine search in pixels. */
+  private static final int COARSE_RADIUS = 4;
+  private static final int FINE_RADIUS = BLOCK / 2;
+
+  /* The spacing of the pixels compared by each search. */
+  private static final int COARSE_STEP = 2;
+  private static final int FINE_STEP = 8;
+
+  /* Samples further than this from the reference are treated as motion. */
+  private static final int LUMA_THRESHOLD = 24;
+  private static final int CHROMA_THRESHOLD = 16;
+
+  /* Luma samples at or above this are treated as clipped. */
+  private static final int CLIPPED = 250;
+
+  /* Bands per thread, so a slow band doesn't hold up the rest. */
+  private static final int BANDS_PER_THREAD = 2;
+
+  private final ExecutorService executor;
+  private final int maxFrames;
+  private final Band[] bands;
+
+  /* The frames being merged, and each one's offset from the reference. */
+  private final byte[][] frames;
+  private final int[] offsetX;
+  private final int[] offsetY;
+  private int count;
+  private int width;
+  private int height;
+
+  /* The shrunk luma planes. */
+  private int smallWidth;
+  private int smallHeight;
+  private int[][] smallLumas;
+
+  /* The merged frame. */
+  private byte[] merged;
+
+  /**
+   * @param threads the number of threads to merge with
+   * @param maxFrames the most frames that will be merged at once
+   */
+  public FrameMerger(int threads, int maxFrames) {
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "FrameMerger-" + count++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    this.maxFrames = maxFrames;
+    bands = new Band[threads * BANDS_PER_THREAD];
+    for (int i = 0; i < bands.length; i++) {
+      bands[i] = new Band();
+    }
+    frames = new byte[maxFrames][];
+    offsetX = new int[maxFrames];
+    offsetY = new int[maxFrames];
+    smallLumas = new int[maxFrames][];
+  }
+
+  /**
+   * Merge frames. Returns the merged NV21 frame, which is reused by the next
+   * merge.
+   * 
+   * @param frames NV21 frames with an even width and height
+   * @param count the number of frames to merge from the start of frames
+   * @param reference the index of the frame to align the others to, usually
+   *        the sharpest
+   */
+  public synchronized byte[] merge(byte[][] frames, int count, int reference, int width,
+      int height) {
+    if (count <= 0 || count > maxFrames || reference < 0 || reference >= count) {
+      throw new IllegalArgumentException("Bad frames: " + count + ", " + reference);
+    }
+    allocate(width, height);
+
+    // Put the reference first.
+    this.count = count;
+    this.frames[0] = frames[reference];
+    for (int i = 0, f = 1; i < count; i++) {
+      if (i != reference) {
+        this.frames[f++] = frames[i];
+      }
+    }
+
+    align();
+
+    List<Band> tasks = new ArrayList<Band>(bands.length);
+    int chromaRows = height / 2;
+    for (int b = 0; b < bands.length; b++) {
+      Band band = bands[b];
+      band.startRow = 2 * (chromaRows * b / bands.length);
+      band.endRow = 2 * (chromaRows * (b + 1) / bands.length);
+      tasks.add(band);
+    }
+    try {
+      executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int i = 0; i < count; i++) {
+      this.frames[i] = null;
+    }
+    return merged;
+  }
+
+  /**
+   * Returns how far a frame passed to the last merge was found to be from
+   * the reference, in pixels. Frames are numbered with the reference first
+   * and the rest in order.
+   */
+  public synchronized int getOffsetX(int frame) {
+    return offsetX[frame];
+  }
+
+  public synchronized int getOffsetY(int frame) {
+    return offsetY[frame];
+  }
+
+  private void allocate(int width, int height) {
+    if (merged != null && width == this.width && height == this.height) {
+      return;
+    }
+    this.width = width;
+    this.height = height;
+    merged = new byte[width * height * 3 / 2];
+    smallWidth = width / BLOCK;
+    smallHeight = height / BLOCK;
+    for (int i = 0; i < maxFrames; i++) {
+      smallLumas[i] = new int[smallWidth * smallHeight];
+    }
+    for (Band band : bands) {
+      band.sums = new int[width];
+      band.counts = new int[width];
+      band.clippedSums = new int[width];
+      band.clippedCounts = new int[width];
+    }
+  }
+
+  /**
+   * Find each frame's offset from the reference.
+   */
+  private void align() {
+    offsetX[0] = 0;
+    offsetY[0] = 0;
+    if (count == 1) {
+      return;
+    }
+    for (int f = 0; f < count; f++) {
+      shrink(frames[f], smallLumas[f]);
+    }
+    for (int f = 1; f < count; f++) {
+      // Coarse search on the shrunk planes.
+      int[] reference = smallLumas[0];
+      int[] frame = smallLumas[f];
+      long bestCost = Long.MAX_VALUE;
+      int bestX = 0;
+      int bestY = 0;
+      for (int dy = -COARSE_RADIUS; dy <= COARSE_RADIUS; dy++) {
+        for (int dx = -COARSE_RADIUS; dx <= COARSE_RADIUS; dx++) {
+          long cost = 0;
+          for (int y = COARSE_RADIUS; y < smallHeight - COARSE_RADIUS; y += COARSE_STEP) {
+            int r = y * smallWidth;
+            int s = (y + dy) * smallWidth + dx;
+            for (int x = COARSE_RADIUS; x < smallWidth - COARSE_RADIUS; x += COARSE_STEP) {
+              cost += Math.abs(reference[r + x] - frame[s + x]);
+            }
+          }
+          if (cost < bestCost || (cost == bestCost && dx * dx + dy * dy < bestX * bestX
+              + bestY * bestY)) {
+            bestCost = cost;
+            bestX = dx;
+            bestY = dy;
+          }
+        }
+      }
+
+      // Refine around it at full resolution.
+      int centerX = bestX * BLOCK;
+      int centerY = bestY * BLOCK;
+      int margin = (COARSE_RADIUS + 1) * BLOCK;
+      bestCost = Long.MAX_VALUE;
+      for (int dy = centerY - FINE_RADIUS; dy <= centerY + FINE_RADIUS; dy++) {
+        for (int dx = centerX - FINE_RADIUS; dx <= centerX + FINE_RADIUS; dx++) {
+          long cost = 0;
+          for (int y = margin; y < height - margin; y += FINE_STEP) {
+            int r = y * width;
+            int s = (y + dy) * width + dx;
+            for (int x = margin; x < width - margin; x += FINE_STEP) {
+              cost += Math.abs((frames[0][r + x] & 0xff) - (frames[f][s + x] & 0xff));
+            }
+          }
+          if (cost < bestCost) {
+            bestCost = cost;
+            offsetX[f] = dx;
+            offsetY[f] = dy;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Average each BLOCK by BLOCK block of a luma plane.
+   */
+  private void shrink(byte[] frame, int[] small) {
+    for (int y = 0; y < smallHeight; y++) {
+      for (int x = 0; x < smallWidth; x++) {
+        int sum = 0;
+        for (int dy = 0; dy < BLOCK; dy++) {
+          int i = (y * BLOCK + dy) * width + x * BLOCK;
+          for (int dx = 0; dx < BLOCK; dx++) {
+            sum += frame[i + dx] & 0xff;
+          }
+        }
+        small[y * smallWidth + x] = sum / (BLOCK * BLOCK);
+      }
+    }
+  }
+
+  /**
+   * Merges a band of rows of the luma plane and the chroma rows under them.
+   */
+  private class Band implements Callable<Object> {
+    int startRow;
+    int endRow;
+
+    /* Per column totals for the row being merged. Only used by this band. */
+    int[] sums;
+    int[] counts;
+    int[] clippedSums;
+    int[] clippedCounts;
+
+    public Object call() {
+      for (int y = startRow; y < endRow; y++) {
+        mergeLumaRow(y);
+      }
+      for (int y = startRow / 2; y < endRow / 2; y++) {
+        mergeChromaRow(y);
+      }
+      return null;
+    }
+
+    private void mergeLumaRow(int y) {
+      byte[] reference = frames[0];
+      int row = y * width;
+      for (int x = 0; x < width; x++) {
+        int value = reference[row + x] & 0xff;
+        if (value >= CLIPPED) {
+          sums[x] = 0;
+          counts[x] = 0;
+          clippedSums[x] = value;
+          clippedCounts[x] = 1;
+        } else {
+          sums[x] = value;
+          counts[x] = 1;
+          clippedSums[x] = 0;
+          clippedCounts[x] = 0;
+        }
+      }
+      for (int f = 1; f < count; f++) {
+        int sourceY = y + offsetY[f];
+        if (sourceY < 0 || sourceY >= height) {
+          continue;
+        }
+        byte[] frame = frames[f];
+        int dx = offsetX[f];
+        int source = sourceY * width + dx;
+        int end = Math.min(width, width - dx);
+        for (int x = Math.max(0, -dx); x < end; x++) {
+          int value = frame[source + x] & 0xff;
+          if (Math.abs(value - (reference[row + x] & 0xff)) > LUMA_THRESHOLD) {
+            continue;
+          }
+          if (value >= CLIPPED) {
+            clippedSums[x] += value;
+            clippedCounts[x]++;
+          } else {
+            sums[x] += value;
+            counts[x]++;
+          }
+        }
+      }
+      for (int x = 0; x < width; x++) {
+        int n = counts[x];
+        merged[row + x] = (byte) (n > 0 ? (sums[x] + n / 2) / n
+            : (clippedSums[x] + clippedCounts[x] / 2) / clippedCounts[x]);
+      }
+    }
+
+    private void mergeChromaRow(int y) {
+      byte[] reference = frames[0];
+      int row = width * height + y * width;
+      for (int x = 0; x < width; x++) {
+        sums[x] = reference[row + x] & 0xff;
+        counts[x] = 1;
+      }
+      for (int f = 1; f < count; f++) {
+        // Chroma is half resolution, with V and U interleaved.
+        int sourceY = y + (offsetY[f] >> 1);
+        if (sourceY < 0 || sourceY >= height / 2) {
+          continue;
+        }
+        byte[] frame = frames[f];
+        int dx = (offsetX[f] >> 1) * 2;
+        int source = width * height + sourceY * width + dx;
+        int end = Math.min(width, width - dx);
+        for (int x = Math.max(0, -dx); x < end; x++) {
+          int value = frame[source + x] & 0xff;
+          if (Math.abs(value - (reference[row + x] & 0xff)) <= CHROMA_THRESHOLD) {
+            sums[x] += value;
+            counts[x]++;
+          }
+        }
+      }
+      for (int x = 0; x < width; x++) {
+        int n = counts[x];
+        merged[row + x] = (byte) ((sums[x] + n / 2) / n);
+      }
+    }
+  }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * A fixed pool of preview frame buffers that keeps the most recent frames, so
+ * a picture can be taken from a frame that has already arrived instead of
+ * waiting for a full capture. Only depends on the JDK, so it can be
+ * benchmarked without a device.
+ * 
+ * Every buffer is allocated up front. A buffer is either free, waiting to be
+ * handed to the camera, with the camera, in the ring, or taken by someone
+ * encoding it. Adding a frame to a full ring frees the oldest one, so once the
+ * ring has filled, frames are recycled without allocating.
+ * 
+ * This class is thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class FrameRing {
+  /* Every buffer in the pool. */
+  private final byte[][] buffers;
+
+  /* Whether each buffer has been taken and not released. */
+  private final boolean[] isTaken;
+
+  /* The recent frames and when they arrived, oldest first starting at head. */
+  private final byte[][] frames;
+  private final long[] timestamps;
+  private int head = 0;
+  private int size = 0;
+
+  /* Buffers waiting to be handed to the camera. */
+  private final byte[][] free;
+  private int freeCount = 0;
+
+  /* Run when a taken frame is released, or null. */
+  private Runnable releaseCallback;
+
+  /**
+   * @param capacity the number of recent frames to keep
+   * @param spares the number of extra buffers for the camera to fill while
+   *        the ring is full
+   * @param frameSize the size of each buffer in bytes
+   */
+  public FrameRing(int capacity, int spares, int frameSize) {
+    if (capacity <= 0 || spares <= 0) {
+      throw new IllegalArgumentException("Capacity and spares must be positive: " + capacity
+          + ", " + spares);
+    }
+    buffers = new byte[capacity + spares][];
+    for (int i = 0; i < buffers.length; i++) {
+      buffers[i] = new byte[frameSize];
+    }
+    isTaken = new boolean[buffers.length];
+    frames = new byte[capacity][];
+    timestamps = new long[capacity];
+    free = new byte[buffers.length][];
+    reset();
+  }
+
+  /**
+   * Returns the size of each buffer in bytes.
+   */
+  public int getFrameSize() {
+    return buffers[0].length;
+  }
+
+  /**
+   * Empty the ring and mark every buffer that hasn't been taken as free. Call
+   * when the camera has let go of the buffers it was filling.
+   */
+  public synchronized void reset() {
+    head = 0;
+    size = 0;
+    freeCount = 0;
+    for (int i = 0; i < buffers.length; i++) {
+      if (!isTaken[i]) {
+        free[freeCount++] = buffers[i];
+      }
+    }
+  }
+
+  /**
+   * Returns a free buffer to hand to the camera, or null if there isn't one.
+   */
+  public synchronized byte[] pollFree() {
+    if (freeCount == 0) {
+      return null;
+    }
+    byte[] buffer = free[--freeCount];
+    free[freeCount] = null;
+    return buffer;
+  }
+
+  /**
+   * Add a frame the camera has filled as the newest, freeing the oldest if
+   * the ring is full.
+   */
+  public synchronized void add(byte[] frame, long timestampNanos) {
+    if (size == frames.length) {
+      free[freeCount++] = frames[head];
+      frames[head] = null;
+      head = (head + 1) % frames.length;
+      size--;
+    }
+    int tail = (head + size) % frames.length;
+    frames[tail] = frame;
+    timestamps[tail] = timestampNanos;
+    size++;
+  }
+
+  /**
+   * Returns the number of frames in the ring.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Returns when the frame the given number of frames older than the newest
+   * arrived, in ns.
+   */
+  public synchronized long getTimestamp(int age) {
+    return timestamps[index(age)];
+  }
+
+  /**
+   * Returns the frame the given number of frames older than the newest
+   * without taking it. The camera may refill it once it leaves the ring, so
+   * it must only be read on the thread that adds frames, or while
+   * synchronized on the ring.
+   */
+  public synchronized byte[] peek(int age) {
+    return frames[index(age)];
+  }
+
+  /**
+   * Take the frame the given number of frames older than the newest out of
+   * the ring, or return null if the ring doesn't hold that many frames. The
+   * frame won't be reused until it is released.
+   */
+  public synchronized byte[] take(int age) {
+    if (age < 0 || age >= size) {
+      return null;
+    }
+    // Close the gap by moving the newer frames back one.
+    int i = index(age);
+    byte[] frame = frames[i];
+    for (int n = age; n > 0; n--) {
+      int next = (i + 1) % frames.length;
+      frames[i] = frames[next];
+      timestamps[i] = timestamps[next];
+      i = next;
+    }
+    frames[i] = null;
+    size--;
+    isTaken[bufferIndex(frame)] = true;
+    return frame;
+  }
+
+  /**
+   * Set what to run when a taken frame is released, on the releasing thread,
+   * so the freed buffer can be handed to the camera. May be null.
+   */
+  public synchronized void setReleaseCallback(Runnable releaseCallback) {
+    this.releaseCallback = releaseCallback;
+  }
+
+  /**
+   * Give back a frame that was taken, so it can be filled again.
+   */
+  public void release(byte[] frame) {
+    Runnable callback;
+    synchronized (this) {
+      isTaken[bufferIndex(frame)] = false;
+      free[freeCount++] = frame;
+      callback = releaseCallback;
+    }
+    if (callback != null) {
+      callback.run();
+    }
+  }
+
+  private int index(int age) {
+    if (age < 0 || age >= size) {
+      throw new IndexOutOfBoundsException("Age " + age + " of " + size);
+    }
+    return (head + size - 1 - age) % frames.length;
+  }
+
+  private int bufferIndex(byte[] frame) {
+    for (int i = 0; i < buffers.length; i++) {
+      if (buffers[i] == frame) {
+        return i;
+      }
+    }
+    throw new IllegalArgumentException("Not a buffer from this ring");
+  }
+}
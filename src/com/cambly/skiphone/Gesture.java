@@ -0,0 +1,74 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * The gestures SkiPhone recognizes. Gestures are passed around as ints so
+ * reporting one never allocates.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class Gesture {
+  public static final int NONE = 0;
+
+  /* Shaking the phone up and down or front to back. */
+  public static final int VERTICAL_SHAKE = 1;
+  public static final int HORIZONTAL_SHAKE = 2;
+
+  /* Two shakes in quick succession. */
+  public static final int DOUBLE_SHAKE = 3;
+
+  /* A single sharp jerk of the phone. */
+  public static final int FLICK = 4;
+
+  /* Rotating the phone about its long axis and back. Needs a gyroscope. */
+  public static final int TWIST = 5;
+
+  /* Tapping the front or back of the phone. */
+  public static final int TAP = 6;
+
+  /* The number of gesture values, including NONE. */
+  public static final int COUNT = 7;
+
+  /* A mask of every gesture except NONE. See {@link #bit}. */
+  public static final int ALL = (1 << COUNT) - 2;
+
+  private static final String[] NAMES = { "none", "vertical_shake", "horizontal_shake",
+      "double_shake", "flick", "twist", "tap" };
+
+  public static String name(int gesture) {
+    return NAMES[gesture];
+  }
+
+  /**
+   * Returns the bit for a gesture in a mask of gestures.
+   */
+  public static int bit(int gesture) {
+    return 1 << gesture;
+  }
+
+  /**
+   * Returns the gesture with the given name, or -1 if there isn't one.
+   */
+  public static int parse(String name) {
+    for (int gesture = 0; gesture < COUNT; gesture++) {
+      if (NAMES[gesture].equals(name)) {
+        return gesture;
+      }
+    }
+    return -1;
+  }
+}
@@ -0,0 +1,159 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Recognizes all of the SkiPhone gestures in a single pass over each
+ * accelerometer reading. The features every gesture needs, including the
+ * shake analysis, are computed once per reading into a shared
+ * {@link MotionFeatures}, and then each {@link GestureRecognizer} state
+ * machine takes a step. Adding a gesture adds one small state machine rather
+ * than another pass over the sensor history.
+ * 
+ * Like the analyzer, the engine only depends on the JDK, is not thread safe
+ * and does not allocate after construction.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class GestureEngine {
+  /* Gyroscope readings older than this don't go with an accelerometer reading. */
+  private static final long MAX_ROTATION_AGE_NANOS = 200L * 1000 * 1000;
+
+  private final ShakeAnalyzer analyzer;
+
+  /*
+   * Makes the shake decision instead of the analyzer's thresholds when set.
+   * The analyzer still runs for the energy means.
+   */
+  private volatile TreeShakeClassifier classifier;
+
+  private final MotionFeatures features = new MotionFeatures();
+
+  private final GestureRecognizer[] recognizers;
+
+  /* The gestures that are reported, as a mask of Gesture bits. */
+  private volatile int enabledGestures = Gesture.ALL;
+
+  /* Whether there has been an accelerometer reading since the last reset. */
+  private boolean hasReading = false;
+
+  /* The latest gyroscope reading. */
+  private boolean hasRotation = false;
+  private long rotationNanos;
+
+  public GestureEngine(ShakeAnalyzer analyzer) {
+    this.analyzer = analyzer;
+    recognizers = new GestureRecognizer[] { new DoubleShakeRecognizer(), new FlickRecognizer(),
+        new TwistRecognizer(), new TapRecognizer() };
+  }
+
+  /**
+   * Process one accelerometer reading.
+   * 
+   * @return the recognized gesture, or Gesture.NONE
+   */
+  public int onAccelerometer(long timestampNanos, float x, float y, float z) {
+    MotionFeatures f = features;
+    if (hasReading) {
+      f.dx = x - f.x;
+      f.dy = y - f.y;
+      f.dz = z - f.z;
+    } else {
+      f.dx = 0;
+      f.dy = 0;
+      f.dz = 0;
+      hasReading = true;
+    }
+    f.timestampNanos = timestampNanos;
+    f.x = x;
+    f.y = y;
+    f.z = z;
+    f.magnitudeSquared = x * x + y * y + z * z;
+    f.shake = analyzer.onSample(timestampNanos, x, y, z);
+    TreeShakeClassifier classifier = this.classifier;
+    if (classifier != null) {
+      f.shake = classifier.onSample(timestampNanos, x, y, z);
+    }
+    f.xyMeanSquared = analyzer.getXYMeanSquared();
+    f.xzMeanSquared = analyzer.getXZMeanSquared();
+    f.hasRotation = hasRotation && timestampNanos - rotationNanos <= MAX_ROTATION_AGE_NANOS;
+
+    // Every recognizer has to see every reading to keep its state current,
+    // but only enabled gestures are reported. A double shake replaces the
+    // shake that completes it; other gestures only count if there wasn't a
+    // shake. So when double shakes are disabled, the second shake is reported
+    // as a shake of its own.
+    int enabled = enabledGestures;
+    int gesture = (enabled & Gesture.bit(f.shake)) != 0 ? f.shake : Gesture.NONE;
+    for (int i = 0; i < recognizers.length; i++) {
+      int recognized = recognizers[i].onFeatures(f);
+      if (recognized != Gesture.NONE && (enabled & Gesture.bit(recognized)) != 0
+          && (gesture == Gesture.NONE || recognized == Gesture.DOUBLE_SHAKE)) {
+        gesture = recognized;
+      }
+    }
+    return gesture;
+  }
+
+  /**
+   * Process one gyroscope reading. It is used with the following
+   * accelerometer readings.
+   */
+  public void onGyroscope(long timestampNanos, float x, float y, float z) {
+    features.rotationX = x;
+    features.rotationY = y;
+    features.rotationZ = z;
+    rotationNanos = timestampNanos;
+    hasRotation = true;
+  }
+
+  /**
+   * Only report the gestures in a mask of {@link Gesture#bit}s, e.g. the ones
+   * something is mapped to. All gestures are reported until this is called.
+   * Can be called from any thread.
+   */
+  public void setEnabledGestures(int enabledGestures) {
+    this.enabledGestures = enabledGestures;
+  }
+
+  /**
+   * Use a trained classifier for the shake decision, or null to go back to the
+   * thresholds.
+   */
+  public void setClassifier(TreeShakeClassifier classifier) {
+    this.classifier = classifier;
+  }
+
+  public ShakeAnalyzer getAnalyzer() {
+    return analyzer;
+  }
+
+  /**
+   * Forget all previous readings.
+   */
+  public void reset() {
+    analyzer.reset();
+    TreeShakeClassifier classifier = this.classifier;
+    if (classifier != null) {
+      classifier.reset();
+    }
+    for (int i = 0; i < recognizers.length; i++) {
+      recognizers[i].reset();
+    }
+    hasReading = false;
+    hasRotation = false;
+  }
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.PrintWriter;
+
+/**
+ * Latency histograms for each stage between a shake and its action, and for
+ * showing SkiPhone when the screen turns on. They are always recorded and can be read or reset with
+ * 
+ * <pre>
+ * adb shell dumpsys activity service com.cambly.skiphone/.SkiPhoneService [reset]
+ * </pre>
+ * 
+ * All times are from {@link System#nanoTime()} except the sensor timestamp.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class GestureLatency {
+  /* From the timestamp of the reading that completed a gesture to detecting it. */
+  public static final LatencyHistogram SENSOR_TO_DETECTION = new LatencyHistogram(
+      "sensor to detection");
+
+  /* From detecting a gesture to calling the listener on the main thread. */
+  public static final LatencyHistogram DETECTION_TO_LISTENER = new LatencyHistogram(
+      "detection to listener");
+
+  /* From calling the listener to sending its intents. */
+  public static final LatencyHistogram LISTENER_TO_DISPATCH = new LatencyHistogram(
+      "listener to dispatch");
+
+  /* From detecting a shake to the camera preview starting. */
+  public static final LatencyHistogram SHAKE_TO_PREVIEW = new LatencyHistogram(
+      "shake to camera preview");
+
+  /* Time taken to answer or hang up a call by each of the CallDispatcher routes. */
+  public static final LatencyHistogram CALL_VIA_TELECOM = new LatencyHistogram(
+      "call via telecom");
+  public static final LatencyHistogram CALL_VIA_MEDIA_KEY = new LatencyHistogram(
+      "call via media key");
+  public static final LatencyHistogram CALL_VIA_BROADCAST = new LatencyHistogram(
+      "call via broadcast");
+
+  /*
+   * From the screen turning on to the status overlay or the SkiPhone activity
+   * being drawn.
+   */
+  public static final LatencyHistogram SCREEN_ON_TO_OVERLAY = new LatencyHistogram(
+      "screen on to overlay");
+  public static final LatencyHistogram SCREEN_ON_TO_ACTIVITY = new LatencyHistogram(
+      "screen on to activity");
+
+  private static final LatencyHistogram[] HISTOGRAMS = { SENSOR_TO_DETECTION,
+      DETECTION_TO_LISTENER, LISTENER_TO_DISPATCH, SHAKE_TO_PREVIEW, CALL_VIA_TELECOM,
+      CALL_VIA_MEDIA_KEY, CALL_VIA_BROADCAST, SCREEN_ON_TO_OVERLAY, SCREEN_ON_TO_ACTIVITY };
+
+  public static void dump(PrintWriter writer) {
+    for (LatencyHistogram histogram : HISTOGRAMS) {
+      histogram.dump(writer);
+    }
+  }
+
+  public static void reset() {
+    for (LatencyHistogram histogram : HISTOGRAMS) {
+      histogram.reset();
+    }
+  }
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * A state machine that recognizes one gesture from the shared
+ * {@link MotionFeatures}. Recognizers are called for every accelerometer
+ * reading, so they must be cheap and must not allocate.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public abstract class GestureRecognizer {
+  /**
+   * Process the features of one reading.
+   * 
+   * @return the recognized gesture, or Gesture.NONE
+   */
+  public abstract int onFeatures(MotionFeatures features);
+
+  /**
+   * Go back to the initial state.
+   */
+  public abstract void reset();
+}
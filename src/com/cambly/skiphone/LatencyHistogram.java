@@ -0,0 +1,140 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.PrintWriter;
+
+/**
+ * A fixed-bucket latency histogram in the style of HdrHistogram. Latencies
+ * are recorded in microseconds into log-linear buckets: 16 buckets per power
+ * of two, so every recorded value is within 1/16 of its bucket's bounds.
+ * Percentiles are reported as the upper bound of their bucket.
+ * 
+ * Recording is constant time and never allocates, so it is safe to leave on
+ * in the gesture path. Methods are synchronized so the histogram can be
+ * recorded from the sensor and main threads and dumped from a binder thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class LatencyHistogram {
+  /* log2 of the number of buckets per power of two. */
+  private final static int SUB_BUCKET_BITS = 4;
+  private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  /* Largest magnitude tracked. Longer latencies land in the last bucket. */
+  private final static int MAX_MAGNITUDE = 31;
+
+  private final static int BUCKETS = SUB_BUCKETS + (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1)
+      * SUB_BUCKETS;
+
+  private final String name;
+  private final long[] counts = new long[BUCKETS];
+  private long count = 0;
+  private long totalMicros = 0;
+  private long maxMicros = 0;
+
+  public LatencyHistogram(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Record a latency. Negative latencies are ignored.
+   */
+  public synchronized void record(long nanos) {
+    if (nanos < 0) {
+      return;
+    }
+    long micros = nanos / 1000;
+    counts[bucketOf(micros)]++;
+    count++;
+    totalMicros += micros;
+    if (micros > maxMicros) {
+      maxMicros = micros;
+    }
+  }
+
+  public synchronized long getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the latency in microseconds that the given percentage of the
+   * recorded latencies are at or below, or 0 if nothing has been recorded.
+   */
+  public synchronized long getPercentileMicros(double percent) {
+    if (count == 0) {
+      return 0;
+    }
+    long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return i == BUCKETS - 1 ? maxMicros : Math.min(upperBoundOf(i), maxMicros);
+      }
+    }
+    return maxMicros;
+  }
+
+  public synchronized long getMaxMicros() {
+    return maxMicros;
+  }
+
+  public synchronized void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = 0;
+    }
+    count = 0;
+    totalMicros = 0;
+    maxMicros = 0;
+  }
+
+  /**
+   * Print a one line summary of the histogram, in milliseconds.
+   */
+  public synchronized void dump(PrintWriter writer) {
+    writer.println(String.format("%-24s n=%-6d mean=%.2f p50=%.2f p90=%.2f p99=%.2f max=%.2f ms",
+        name + ":", count, count == 0 ? 0 : totalMicros / 1000.0 / count,
+        getPercentileMicros(50) / 1000.0, getPercentileMicros(90) / 1000.0,
+        getPercentileMicros(99) / 1000.0, maxMicros / 1000.0));
+  }
+
+  private static int bucketOf(long micros) {
+    if (micros < SUB_BUCKETS) {
+      return (int) micros;
+    }
+    int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+    if (magnitude > MAX_MAGNITUDE) {
+      return BUCKETS - 1;
+    }
+    int shift = magnitude - SUB_BUCKET_BITS;
+    int subBucket = (int) (micros >> shift) - SUB_BUCKETS;
+    return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBoundOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+    int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+    return ((long) (SUB_BUCKETS + subBucket + 1) << shift) - 1;
+  }
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Features extracted once per accelerometer reading by the
+ * {@link GestureEngine} and shared by all of the gesture recognizers. A
+ * single instance is reused for every reading.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class MotionFeatures {
+  /* The accelerometer reading. */
+  public long timestampNanos;
+  public float x;
+  public float y;
+  public float z;
+
+  /* Squared magnitude of the reading. About 96 when the phone is still. */
+  public float magnitudeSquared;
+
+  /* Change from the previous reading, or 0 for the first reading. */
+  public float dx;
+  public float dy;
+  public float dz;
+
+  /* Output of the shake analyzer for this reading. */
+  public int shake;
+  public float xyMeanSquared;
+  public float xzMeanSquared;
+
+  /*
+   * The latest gyroscope reading in rad/s, if there has been one recently
+   * enough to go with this accelerometer reading.
+   */
+  public boolean hasRotation;
+  public float rotationX;
+  public float rotationY;
+  public float rotationZ;
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Keeps the {@link ShakeDetector} off while the phone isn't moving. When the
+ * gate is started the detector is armed right away, since the user has just
+ * turned on the screen. Once the readings have been quiet for the idle
+ * timeout, e.g. sitting on a lift chair, the detector is disarmed and the
+ * significant motion sensor is asked to wake us up when the phone starts
+ * moving again. That sensor runs in the sensor hub at a tiny fraction of the
+ * cost of the accelerometer listener.
+ * 
+ * Devices without a significant motion sensor (and anything before Jelly Bean
+ * MR2) keep the detector armed, where it runs at the low sampling rate while
+ * the phone is still. The detector is also armed again straight away when the
+ * service wakes the gate, e.g. for an incoming call, since the phone may be
+ * lying still when the user wants to answer it.
+ * 
+ * All methods must be called on the thread that created the gate, except the
+ * time getters, which can be called from any thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class MotionGate {
+  private static final String LOG_PREFIX = "MotionGate";
+
+  private final ShakeDetector shakeDetector;
+
+  private final SensorManager sensorManager;
+
+  /* The significant motion trigger, or null if the device doesn't have one. */
+  private final Sensor significantMotionSensor;
+  private SignificantMotionListener significantMotionListener;
+
+  /* Whether the gate is started and armed. Written while synchronized on the gate. */
+  private boolean isStarted = false;
+  private boolean isArmed = false;
+
+  /*
+   * Time spent armed and disarmed while started, in ms. Synchronized on the
+   * gate.
+   */
+  private long armedMillis = 0;
+  private long disarmedMillis = 0;
+
+  /* When the gate last changed state. Synchronized on the gate. */
+  private long lastChangeMillis;
+
+  public MotionGate(Context context, ShakeDetector shakeDetector, long idleTimeoutMillis) {
+    this.shakeDetector = shakeDetector;
+    sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+      significantMotionSensor = sensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+    } else {
+      significantMotionSensor = null;
+    }
+
+    if (significantMotionSensor != null) {
+      shakeDetector.setIdleListener(new Runnable() {
+        public void run() {
+          disarm();
+        }
+      }, idleTimeoutMillis);
+    }
+  }
+
+  /**
+   * Start detecting shakes, and keep detecting them while the phone moves. If
+   * the gate is already started, the detector is armed again.
+   */
+  public void start() {
+    if (isStarted) {
+      wake();
+      return;
+    }
+    synchronized (this) {
+      isStarted = true;
+      lastChangeMillis = SystemClock.elapsedRealtime();
+    }
+    arm();
+  }
+
+  /**
+   * Arm the detector again now if the gate has disarmed it, without waiting
+   * for the phone to move. Does nothing if the gate isn't started.
+   */
+  public void wake() {
+    if (!isStarted || isArmed) {
+      return;
+    }
+    cancelTrigger();
+    DebugTrace.record(DebugTrace.GATE_ARMED, 0);
+    arm();
+  }
+
+  /**
+   * Stop detecting shakes.
+   */
+  public void stop() {
+    if (!isStarted) {
+      return;
+    }
+    synchronized (this) {
+      updateTimes();
+      isStarted = false;
+      isArmed = false;
+    }
+    shakeDetector.stop();
+    cancelTrigger();
+
+    DebugTrace.record(DebugTrace.GATE_TIMES, (int) armedMillis, (int) disarmedMillis);
+  }
+
+  /**
+   * Returns the time the shake detector has spent disarmed by the gate, in ms.
+   */
+  public synchronized long getDisarmedMillis() {
+    if (isStarted) {
+      updateTimes();
+    }
+    return disarmedMillis;
+  }
+
+  /**
+   * Returns the time the shake detector has spent armed, in ms.
+   */
+  public synchronized long getArmedMillis() {
+    if (isStarted) {
+      updateTimes();
+    }
+    return armedMillis;
+  }
+
+  private void arm() {
+    synchronized (this) {
+      updateTimes();
+      isArmed = true;
+    }
+    shakeDetector.start();
+  }
+
+  private void disarm() {
+    if (!isStarted || !isArmed) {
+      return;
+    }
+    synchronized (this) {
+      updateTimes();
+      isArmed = false;
+    }
+    DebugTrace.record(DebugTrace.GATE_DISARMED);
+    shakeDetector.stop();
+    requestTrigger();
+  }
+
+  /**
+   * Must be called while synchronized on the gate.
+   */
+  private void updateTimes() {
+    long now = SystemClock.elapsedRealtime();
+    if (isArmed) {
+      armedMillis += now - lastChangeMillis;
+    } else {
+      disarmedMillis += now - lastChangeMillis;
+    }
+    lastChangeMillis = now;
+  }
+
+  private void requestTrigger() {
+    if (significantMotionListener == null) {
+      significantMotionListener = new SignificantMotionListener();
+    }
+    if (!sensorManager.requestTriggerSensor(significantMotionListener, significantMotionSensor)) {
+      // Don't risk missing shakes if the trigger can't be set.
+      Log.e(LOG_PREFIX, "Couldn't request significant motion trigger.");
+      arm();
+    }
+  }
+
+  private void cancelTrigger() {
+    if (significantMotionListener != null) {
+      sensorManager.cancelTriggerSensor(significantMotionListener, significantMotionSensor);
+    }
+  }
+
+  /**
+   * Re-arms the detector when the phone starts moving. Trigger sensors fire
+   * once and then cancel themselves.
+   */
+  private class SignificantMotionListener extends TriggerEventListener {
+    @Override
+    public void onTrigger(TriggerEvent event) {
+      if (isStarted && !isArmed) {
+        DebugTrace.record(DebugTrace.GATE_ARMED, 1);
+        arm();
+      }
+    }
+  }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.util.Arrays;
+
+/**
+ * Estimates a quantile of a stream of values in constant memory using the
+ * P-square algorithm (Jain and Chlamtac, 1985). Five markers track the
+ * minimum, the maximum, the quantile and the points halfway to it on either
+ * side. Marker heights are adjusted with a piecewise parabolic fit as values
+ * arrive, so each value is processed in constant time without storing it.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class P2Quantile {
+  private static final int MARKERS = 5;
+
+  /* The quantile being estimated, between 0 and 1. */
+  private final double p;
+
+  /* Marker heights. The first values seen are stored here unsorted. */
+  private final double[] heights = new double[MARKERS];
+
+  /* Actual and desired marker positions, and desired position increments. */
+  private final int[] positions = new int[MARKERS];
+  private final double[] desired = new double[MARKERS];
+  private final double[] increments;
+
+  /* Number of values seen. */
+  private int count = 0;
+
+  public P2Quantile(double p) {
+    if (p <= 0 || p >= 1) {
+      throw new IllegalArgumentException("Quantile must be between 0 and 1: " + p);
+    }
+    this.p = p;
+    increments = new double[] { 0, p / 2, p, (1 + p) / 2, 1 };
+  }
+
+  public void add(double x) {
+    if (count < MARKERS) {
+      heights[count++] = x;
+      if (count == MARKERS) {
+        Arrays.sort(heights);
+        for (int i = 0; i < MARKERS; i++) {
+          positions[i] = i;
+        }
+        updateDesiredPositions();
+      }
+      return;
+    }
+    count++;
+
+    // Find the cell the value falls in, extending the extremes if needed.
+    int k;
+    if (x < heights[0]) {
+      heights[0] = x;
+      k = 0;
+    } else if (x >= heights[MARKERS - 1]) {
+      heights[MARKERS - 1] = x;
+      k = MARKERS - 2;
+    } else {
+      k = 0;
+      while (x >= heights[k + 1]) {
+        k++;
+      }
+    }
+
+    for (int i = k + 1; i < MARKERS; i++) {
+      positions[i]++;
+    }
+    for (int i = 0; i < MARKERS; i++) {
+      desired[i] += increments[i];
+    }
+
+    // Move the middle markers towards their desired positions.
+    for (int i = 1; i < MARKERS - 1; i++) {
+      double d = desired[i] - positions[i];
+      if ((d >= 1 && positions[i + 1] - positions[i] > 1)
+          || (d <= -1 && positions[i - 1] - positions[i] < -1)) {
+        int step = d > 0 ? 1 : -1;
+        double height = parabolic(i, step);
+        if (heights[i - 1] < height && height < heights[i + 1]) {
+          heights[i] = height;
+        } else {
+          heights[i] += step * (heights[i + step] - heights[i])
+              / (positions[i + step] - positions[i]);
+        }
+        positions[i] += step;
+      }
+    }
+  }
+
+  /**
+   * Returns the estimated quantile, or 0 if no values have been seen.
+   */
+  public double getQuantile() {
+    if (count == 0) {
+      return 0;
+    }
+    if (count < MARKERS) {
+      double[] sorted = new double[count];
+      System.arraycopy(heights, 0, sorted, 0, count);
+      Arrays.sort(sorted);
+      return sorted[(int) Math.round(p * (count - 1))];
+    }
+    return heights[2];
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Returns the estimator state as a compact string that can be restored
+   * with {@link #decode}.
+   */
+  public String encode() {
+    StringBuilder state = new StringBuilder();
+    state.append(count);
+    for (int i = 0; i < MARKERS; i++) {
+      state.append(',').append(heights[i]);
+    }
+    for (int i = 0; i < MARKERS; i++) {
+      state.append(',').append(positions[i]);
+    }
+    return state.toString();
+  }
+
+  /**
+   * Restore an estimator saved with {@link #encode}. Returns a new estimator
+   * if the state is missing, can't be parsed or isn't a state the estimator
+   * could have reached: a negative count, heights that aren't finite or are
+   * out of order, or marker positions that don't fit the count.
+   */
+  public static P2Quantile decode(double p, String state) {
+    P2Quantile estimator = new P2Quantile(p);
+    if (state == null) {
+      return estimator;
+    }
+    String[] fields = state.split(",");
+    if (fields.length != 1 + 2 * MARKERS) {
+      return estimator;
+    }
+    try {
+      estimator.count = Integer.parseInt(fields[0]);
+      for (int i = 0; i < MARKERS; i++) {
+        estimator.heights[i] = Double.parseDouble(fields[1 + i]);
+        estimator.positions[i] = Integer.parseInt(fields[1 + MARKERS + i]);
+      }
+    } catch (NumberFormatException e) {
+      return new P2Quantile(p);
+    }
+    if (!estimator.isValid()) {
+      return new P2Quantile(p);
+    }
+    if (estimator.count >= MARKERS) {
+      estimator.updateDesiredPositions();
+    }
+    return estimator;
+  }
+
+  /**
+   * Returns whether the state is one the estimator could have reached. Only
+   * the stored values count before the markers are set up. After that the
+   * heights must be in order, and the positions must start at 0, increase and
+   * end at the index of the last value seen.
+   */
+  private boolean isValid() {
+    if (count < 0) {
+      return false;
+    }
+    int stored = Math.min(count, MARKERS);
+    for (int i = 0; i < stored; i++) {
+      if (Double.isNaN(heights[i]) || Double.isInfinite(heights[i])) {
+        return false;
+      }
+    }
+    if (count < MARKERS) {
+      return true;
+    }
+    if (positions[0] != 0 || positions[MARKERS - 1] != count - 1) {
+      return false;
+    }
+    for (int i = 1; i < MARKERS; i++) {
+      if (heights[i] < heights[i - 1] || positions[i] <= positions[i - 1]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void updateDesiredPositions() {
+    double[] initial = { 0, 2 * p, 4 * p, 2 + 2 * p, 4 };
+    for (int i = 0; i < MARKERS; i++) {
+      desired[i] = initial[i] + (count - MARKERS) * increments[i];
+    }
+  }
+
+  private double parabolic(int i, int step) {
+    double below = positions[i] - positions[i - 1];
+    double above = positions[i + 1] - positions[i];
+    return heights[i] + step / (double) (positions[i + 1] - positions[i - 1])
+        * ((below + step) * (heights[i + 1] - heights[i]) / above
+            + (above - step) * (heights[i] - heights[i - 1]) / below);
+  }
+}
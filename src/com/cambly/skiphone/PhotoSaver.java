@@ -0,0 +1,379 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.provider.MediaStore;
+import android.util.Log;
+
+/**
+ * Saves captured JPEGs on a background thread, so the camera callback only
+ * hands the bytes over and the preview can start again straight away. Each
+ * photo is written once with {@link PhotoWriter} and added to the media
+ * database with a single insert that points at the file, so it is never
+ * decoded, re-encoded or stored twice.
+ * 
+ * Preview frames are encoded as JPEGs first by a pool of encoders, one per
+ * core, so a burst of frames is encoded in parallel while earlier ones are
+ * written. Frames to pick the sharpest of are scored by the encoders too, so
+ * the camera thread isn't held up. The encoders take work from a bounded
+ * queue, and callers can see how many frames are still being saved so they
+ * can hold back instead of queueing more than memory allows.
+ * 
+ * The saver is shared by the whole process and its threads outlive the
+ * activity, so a photo taken just before the camera closes is still saved.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class PhotoSaver {
+  /**
+   * Told when a preview frame has been saved, or couldn't be. Called on a
+   * background thread.
+   */
+  public interface Listener {
+    void onFrameSaved(boolean isSaved);
+  }
+
+  private static final String LOG_PREFIX = "PhotoSaver";
+
+  /* The JPEG quality for preview frames, the same as CameraView uses for pictures. */
+  private static final int JPEG_QUALITY = 90;
+
+  /* Passed to insert() when the orientation is recorded in the JPEG itself. */
+  private static final int NO_ORIENTATION = -1;
+
+  /*
+   * An EXIF segment holding only the orientation, which goes right after the
+   * start of image marker. Byte ORIENTATION_OFFSET is set to the EXIF
+   * orientation value.
+   */
+  private static final byte[] EXIF_ORIENTATION = {
+      (byte) 0xff, (byte) 0xe1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+      'M', 'M', 0, 42, 0, 0, 0, 8,
+      0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 1, 0, 0,
+      0, 0, 0, 0 };
+  private static final int ORIENTATION_OFFSET = 29;
+
+  private static PhotoSaver instance;
+
+  private final ContentResolver contentResolver;
+
+  /* Writes photos to the SkiPhone photo directory. */
+  private final PhotoWriter photoWriter;
+
+  /* Saves the photos on a background thread. */
+  private final Handler saveHandler;
+
+  /* Encodes preview frames. Queues at most one frame per encoder. */
+  private final int encoderCount;
+  private final ThreadPoolExecutor encoder;
+
+  /* The preview frame photos handed to the encoders that haven't been saved yet. */
+  private final AtomicInteger pendingFrames = new AtomicInteger();
+
+  /**
+   * Returns the saver, creating it the first time.
+   */
+  public static synchronized PhotoSaver get(Context context) {
+    if (instance == null) {
+      instance = new PhotoSaver(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private PhotoSaver(Context context) {
+    contentResolver = context.getContentResolver();
+    photoWriter = new PhotoWriter(new File(Environment.getExternalStoragePublicDirectory(
+        Environment.DIRECTORY_PICTURES), "SkiPhone"));
+
+    HandlerThread saveThread = new HandlerThread("PhotoSaver",
+        Process.THREAD_PRIORITY_BACKGROUND);
+    saveThread.start();
+    saveHandler = new Handler(saveThread.getLooper());
+
+    encoderCount = Runtime.getRuntime().availableProcessors();
+    encoder = new ThreadPoolExecutor(encoderCount, encoderCount, 0, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(encoderCount), new ThreadFactory() {
+          private int count = 0;
+
+          public Thread newThread(final Runnable runnable) {
+            return new Thread(new Runnable() {
+              public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+              }
+            }, "PhotoEncoder-" + count++);
+          }
+        });
+  }
+
+  /**
+   * Returns the number of frames that can be encoded at once.
+   */
+  public int getEncoderCount() {
+    return encoderCount;
+  }
+
+  /**
+   * Returns the number of preview frames that are still being encoded or
+   * written.
+   */
+  public int getPendingFrames() {
+    return pendingFrames.get();
+  }
+
+  /**
+   * Save a JPEG in the background. The saver keeps the array, so the caller
+   * mustn't change it afterwards.
+   * 
+   * @param timeMillis the capture time
+   */
+  public void save(final byte[] jpeg, final long timeMillis) {
+    saveHandler.post(new Runnable() {
+      public void run() {
+        write(jpeg, timeMillis, NO_ORIENTATION);
+      }
+    });
+  }
+
+  /**
+   * Write a JPEG and add it to the media database. Returns whether it was
+   * written. Called on the save thread.
+   */
+  private boolean write(byte[] jpeg, long timeMillis, int orientation) {
+    try {
+      File photoFile = photoWriter.write(jpeg, timeMillis);
+      insert(photoFile, jpeg.length, timeMillis, orientation);
+      return true;
+    } catch (IOException e) {
+      Log.e(LOG_PREFIX, "Couldn't save picture.", e);
+      return false;
+    }
+  }
+
+  /**
+   * Pick the sharpest of NV21 preview frames taken from the ring, then encode
+   * it as a JPEG and save it in the background. The other frames are released
+   * back to the ring once they have been scored, and the sharpest once it has
+   * been encoded. Returns false, releasing the frames straight away, if the
+   * encode queue is full.
+   * 
+   * @param frames the frames, newest first
+   * @param orientation the rotation to record with the photo in degrees
+   * @param listener told when the frame has been saved, or null
+   */
+  public boolean saveSharpestFrame(final FrameRing ring, byte[][] frames, final int count,
+      final int width, final int height, final long timeMillis, final int orientation,
+      final SharpnessScorer scorer, final Listener listener) {
+    // The caller may reuse its array.
+    final byte[][] scoredFrames = new byte[count][];
+    System.arraycopy(frames, 0, scoredFrames, 0, count);
+    pendingFrames.incrementAndGet();
+    try {
+      encoder.execute(new Runnable() {
+        public void run() {
+          int sharpest = sharpest(scoredFrames, count, width, height, scorer);
+          for (int i = 0; i < count; i++) {
+            if (i != sharpest) {
+              ring.release(scoredFrames[i]);
+            }
+          }
+          byte[] frame = scoredFrames[sharpest];
+          final byte[] jpeg = encode(frame, width, height, orientation);
+          ring.release(frame);
+          if (jpeg == null) {
+            saved(false, listener);
+            return;
+          }
+          saveHandler.post(new Runnable() {
+            public void run() {
+              saved(write(jpeg, timeMillis, orientation), listener);
+            }
+          });
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pendingFrames.decrementAndGet();
+      for (int i = 0; i < count; i++) {
+        ring.release(scoredFrames[i]);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Merge NV21 preview frames taken from the ring into one photo, then encode
+   * and save it in the background like saveSharpestFrame(). The others are
+   * aligned to the sharpest. The frames are released back to the ring once
+   * they have been merged. Returns false, releasing the frames straight away,
+   * if the encode queue is full.
+   * 
+   * @param frames the frames, newest first
+   * @param orientation the rotation to record with the photo in degrees
+   */
+  public boolean saveMergedFrames(final FrameRing ring, byte[][] frames, final int count,
+      final int width, final int height, final long timeMillis, final int orientation,
+      final SharpnessScorer scorer, final FrameMerger merger) {
+    // The caller may reuse its array.
+    final byte[][] mergedFrames = new byte[count][];
+    System.arraycopy(frames, 0, mergedFrames, 0, count);
+    pendingFrames.incrementAndGet();
+    try {
+      encoder.execute(new Runnable() {
+        public void run() {
+          int reference = sharpest(mergedFrames, count, width, height, scorer);
+          final byte[] jpeg;
+          // The merged frame is only valid until the next merge.
+          synchronized (merger) {
+            byte[] merged = merger.merge(mergedFrames, count, reference, width, height);
+            for (int i = 0; i < count; i++) {
+              ring.release(mergedFrames[i]);
+            }
+            jpeg = encode(merged, width, height, orientation);
+          }
+          if (jpeg == null) {
+            saved(false, null);
+            return;
+          }
+          saveHandler.post(new Runnable() {
+            public void run() {
+              saved(write(jpeg, timeMillis, orientation), null);
+            }
+          });
+        }
+      });
+      return true;
+    } catch (RejectedExecutionException e) {
+      pendingFrames.decrementAndGet();
+      for (int i = 0; i < count; i++) {
+        ring.release(mergedFrames[i]);
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Returns the index of the sharpest of the frames.
+   */
+  private static int sharpest(byte[][] frames, int count, int width, int height,
+      SharpnessScorer scorer) {
+    if (count == 1) {
+      return 0;
+    }
+    float[] scores = new float[count];
+    scorer.score(frames, count, width, height, scores);
+    int sharpest = SharpnessScorer.sharpest(scores, count);
+    DebugTrace.record(DebugTrace.SHARPEST, count, sharpest, scores[sharpest], scores[0], 0);
+    return sharpest;
+  }
+
+  /**
+   * Returns a frame encoded as a JPEG with its orientation in EXIF, so apps
+   * that read the file rather than the media database show it upright, or
+   * null if it couldn't be encoded.
+   */
+  private static byte[] encode(byte[] frame, int width, int height, int orientation) {
+    // JPEGs of preview frames are usually well under a quarter of the frame.
+    ByteArrayOutputStream jpegStream = new ByteArrayOutputStream(frame.length / 4);
+    YuvImage image = new YuvImage(frame, ImageFormat.NV21, width, height, null);
+    if (!image.compressToJpeg(new Rect(0, 0, width, height), JPEG_QUALITY, jpegStream)) {
+      Log.e(LOG_PREFIX, "Couldn't encode preview frame.");
+      return null;
+    }
+    byte[] encoded = jpegStream.toByteArray();
+    if (encoded.length < 2 || encoded[0] != (byte) 0xff || encoded[1] != (byte) 0xd8) {
+      return encoded;
+    }
+
+    // Insert the EXIF segment after the start of image marker.
+    byte[] jpeg = new byte[encoded.length + EXIF_ORIENTATION.length];
+    jpeg[0] = encoded[0];
+    jpeg[1] = encoded[1];
+    System.arraycopy(EXIF_ORIENTATION, 0, jpeg, 2, EXIF_ORIENTATION.length);
+    jpeg[2 + ORIENTATION_OFFSET] = exifOrientation(orientation);
+    System.arraycopy(encoded, 2, jpeg, 2 + EXIF_ORIENTATION.length, encoded.length - 2);
+    return jpeg;
+  }
+
+  /**
+   * Returns the EXIF orientation value for a rotation in degrees.
+   */
+  private static byte exifOrientation(int orientation) {
+    switch (orientation) {
+    case 90:
+      return 6;
+    case 180:
+      return 3;
+    case 270:
+      return 8;
+    default:
+      return 1;
+    }
+  }
+
+  private void saved(boolean isSaved, Listener listener) {
+    pendingFrames.decrementAndGet();
+    if (listener != null) {
+      listener.onFrameSaved(isSaved);
+    }
+  }
+
+  /**
+   * Add a saved photo to the media database, so it shows up in the gallery
+   * in the SkiPhone album.
+   */
+  private void insert(File photoFile, int size, long timeMillis, int orientation) {
+    ContentValues values = new ContentValues(8);
+    values.put(MediaStore.Images.Media.DATA, photoFile.getAbsolutePath());
+    values.put(MediaStore.Images.Media.DISPLAY_NAME, photoFile.getName());
+    values.put(MediaStore.Images.Media.TITLE, photoFile.getName());
+    values.put(MediaStore.Images.Media.MIME_TYPE, "image/jpeg");
+    values.put(MediaStore.Images.Media.SIZE, Long.valueOf(size));
+    values.put(MediaStore.Images.Media.DATE_TAKEN, Long.valueOf(timeMillis));
+    values.put(MediaStore.Images.Media.DATE_ADDED, Long.valueOf(timeMillis / 1000));
+    if (orientation != NO_ORIENTATION) {
+      values.put(MediaStore.Images.Media.ORIENTATION, Integer.valueOf(orientation));
+    }
+    try {
+      if (contentResolver.insert(MediaStore.Images.Media.EXTERNAL_CONTENT_URI, values) == null) {
+        Log.e(LOG_PREFIX, "Couldn't add " + photoFile + " to the media store.");
+      }
+    } catch (RuntimeException e) {
+      // The photo is still on the sdcard, the media scanner will find it later.
+      Log.e(LOG_PREFIX, "Couldn't add " + photoFile + " to the media store.", e);
+    }
+  }
+}
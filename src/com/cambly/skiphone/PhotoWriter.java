@@ -0,0 +1,79 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes captured JPEGs to the photo directory. Only depends on the JDK, so
+ * the write path can be benchmarked without a device.
+ * 
+ * Each photo is written to a hidden temporary file in the same directory and
+ * renamed into place once it is on disk, so the gallery never sees a partly
+ * written photo, even if the app dies mid-write.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class PhotoWriter {
+  /* The directory photos are written to. */
+  private final File photoDir;
+
+  public PhotoWriter(File photoDir) {
+    this.photoDir = photoDir;
+  }
+
+  /**
+   * Write a JPEG to the photo directory, creating the directory if needed.
+   * 
+   * @param timeMillis the capture time, used to name the file
+   * @return the file that was written
+   */
+  public File write(byte[] jpeg, long timeMillis) throws IOException {
+    // Make sure photo directory exists.
+    photoDir.mkdirs();
+
+    String name = "skiphone-" + timeMillis + ".jpg";
+    File photoFile = new File(photoDir, name);
+    File tempFile = new File(photoDir, "." + name + ".tmp");
+    boolean isWritten = false;
+    try {
+      FileChannel channel = new FileOutputStream(tempFile).getChannel();
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(jpeg);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        // Make sure the data is on disk before the rename makes it visible.
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+      if (!tempFile.renameTo(photoFile)) {
+        throw new IOException("Couldn't rename " + tempFile + " to " + photoFile);
+      }
+      isWritten = true;
+    } finally {
+      if (!isWritten) {
+        tempFile.delete();
+      }
+    }
+    return photoFile;
+  }
+}
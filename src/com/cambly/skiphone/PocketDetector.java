@@ -0,0 +1,125 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+
+/**
+ * Tells when the phone is in a pocket or lying face down, from the proximity
+ * sensor and, if the device has one, the light sensor. The phone counts as
+ * pocketed while something is near the proximity sensor and it is dark, so
+ * a gloved thumb over the sensor in daylight doesn't count.
+ * 
+ * Both sensors only report changes, so this costs nothing while the state is
+ * steady. The listener is called on the {@link SensorHub} thread as soon as
+ * the state changes.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class PocketDetector implements SensorHub.Consumer {
+  public interface Listener {
+    void onPocketChanged(boolean isPocketed);
+  }
+
+  /* Closer than this counts as near, in cm, if the sensor reports distances. */
+  private static final float NEAR_CM = 5;
+
+  /* Darker than this counts as dark, in lux. */
+  private static final float DARK_LUX = 10;
+
+  /* On-change sensors ignore the rate, but the hub needs one. */
+  private static final int SAMPLING_PERIOD_US = 200000;
+
+  private final SensorHub sensorHub;
+  private final Listener listener;
+  private final boolean hasProximity;
+  private final boolean hasLight;
+
+  /* The state. Synchronized on the detector. */
+  private boolean isWatching = false;
+  private boolean isNear = false;
+  private boolean isDark = true;
+  private boolean isPocketed = false;
+
+  public PocketDetector(Context context, Listener listener) {
+    this.listener = listener;
+    sensorHub = SensorHub.get(context);
+    hasProximity = sensorHub.hasSensor(Sensor.TYPE_PROXIMITY);
+    hasLight = sensorHub.hasSensor(Sensor.TYPE_LIGHT);
+  }
+
+  /**
+   * Start watching the sensors. Does nothing if there's no proximity sensor.
+   */
+  public void start() {
+    if (!hasProximity) {
+      return;
+    }
+    synchronized (this) {
+      isWatching = true;
+      isNear = false;
+      isDark = true;
+      isPocketed = false;
+    }
+    sensorHub.register(this, Sensor.TYPE_PROXIMITY, SAMPLING_PERIOD_US, 0);
+    if (hasLight) {
+      sensorHub.register(this, Sensor.TYPE_LIGHT, SAMPLING_PERIOD_US, 0);
+    }
+  }
+
+  /**
+   * Stop watching the sensors. The listener is told the phone is out of the
+   * pocket if it was in one.
+   */
+  public void stop() {
+    sensorHub.unregisterAll(this);
+    boolean wasPocketed;
+    synchronized (this) {
+      isWatching = false;
+      wasPocketed = isPocketed;
+      isPocketed = false;
+    }
+    if (wasPocketed) {
+      listener.onPocketChanged(false);
+    }
+  }
+
+  public void onSensorChanged(SensorEvent event) {
+    boolean isPocketed;
+    synchronized (this) {
+      // A reading may be delivered just after stop().
+      if (!isWatching) {
+        return;
+      }
+      if (event.sensor.getType() == Sensor.TYPE_PROXIMITY) {
+        // Most proximity sensors only report near or far, as 0 and the
+        // maximum range.
+        float distance = event.values[0];
+        isNear = distance < event.sensor.getMaximumRange() && distance < NEAR_CM;
+      } else {
+        isDark = event.values[0] < DARK_LUX;
+      }
+      isPocketed = isNear && isDark;
+      if (isPocketed == this.isPocketed) {
+        return;
+      }
+      this.isPocketed = isPocketed;
+    }
+    listener.onPocketChanged(isPocketed);
+  }
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * A window over the float samples received in the last fixed amount of time.
+ * Samples are kept in a primitive ring buffer with a running sum, so adding a
+ * sample, evicting expired samples and reading the mean are constant time per
+ * sample and never allocate.
+ * 
+ * The capacity bounds the number of samples held. If samples arrive faster
+ * than the capacity allows, the oldest samples are evicted early.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SampleWindow {
+  /* The samples and their timestamps, oldest first starting at head. */
+  private final float[] samples;
+  private final long[] timestamps;
+
+  /* How long samples stay in the window, in ns. */
+  private final long durationNanos;
+
+  /* Index of the oldest sample. */
+  private int head = 0;
+
+  /* Number of samples currently in the window. */
+  private int size = 0;
+
+  /* Sum of the samples in the window. */
+  private double sum = 0;
+
+  public SampleWindow(int capacity, long durationNanos) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    }
+    samples = new float[capacity];
+    timestamps = new long[capacity];
+    this.durationNanos = durationNanos;
+  }
+
+  /**
+   * Add a sample to the window and evict any samples that are older than the
+   * window duration relative to it. Timestamps must not decrease.
+   */
+  public void add(long timestampNanos, float value) {
+    evictBefore(timestampNanos - durationNanos);
+    if (size == samples.length) {
+      removeOldest();
+    }
+    int tail = (head + size) % samples.length;
+    samples[tail] = value;
+    timestamps[tail] = timestampNanos;
+    size++;
+    sum += value;
+  }
+
+  /**
+   * Returns the mean of the samples in the window, or 0 if it is empty.
+   */
+  public float mean() {
+    return size == 0 ? 0 : (float) (sum / size);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void clear() {
+    head = 0;
+    size = 0;
+    sum = 0;
+  }
+
+  /**
+   * Evict samples taken at or before the given time.
+   */
+  private void evictBefore(long timestampNanos) {
+    while (size > 0 && timestamps[head] <= timestampNanos) {
+      removeOldest();
+    }
+  }
+
+  private void removeOldest() {
+    sum -= samples[head];
+    size--;
+    head++;
+    if (head == samples.length) {
+      head = 0;
+      // Recompute the sum once per lap so rounding errors can't accumulate
+      // over a long session.
+      recomputeSum();
+    }
+    if (size == 0) {
+      sum = 0;
+    }
+  }
+
+  private void recomputeSum() {
+    double total = 0;
+    for (int i = 0; i < size; i++) {
+      total += samples[i];
+    }
+    sum = total;
+  }
+}
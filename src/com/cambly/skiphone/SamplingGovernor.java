@@ -0,0 +1,152 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Decides how fast the accelerometer needs to be sampled. While the phone is
+ * fairly still a low rate is enough to notice that motion is picking up. Once
+ * a reading gets close to the shake threshold the governor asks for the high
+ * rate, and it only drops back down after the readings have stayed well below
+ * the threshold for a quiet period. The gap between the raise and lower
+ * levels and the quiet period keep the rate from flapping.
+ * 
+ * The governor also keeps track of how long has been spent at each rate, in
+ * sensor time.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SamplingGovernor {
+  public static final int LOW_RATE = 0;
+  public static final int HIGH_RATE = 1;
+
+  /* Fractions of the shake threshold to raise and lower the rate at. */
+  private static final float RAISE_FRACTION = 0.75f;
+  private static final float LOWER_FRACTION = 0.6f;
+
+  /*
+   * The lowest level the rate is lowered at. Gravity alone gives a squared
+   * reading of about 96 whichever way the phone rests, so with sensor noise
+   * a still phone reads up to about 115. Calibrated thresholds can be low
+   * enough that a fraction of them would be below that. The raise level
+   * keeps the same ratio to it.
+   */
+  private static final float MIN_LOWER_ENERGY = 120.0f;
+  private static final float MIN_RAISE_ENERGY = MIN_LOWER_ENERGY * RAISE_FRACTION
+      / LOWER_FRACTION;
+
+  /* How long readings must stay low before dropping the rate, in ns. */
+  private static final long QUIET_NANOS = 3000L * 1000 * 1000;
+
+  /* Squared readings to raise and lower the rate at. */
+  private float raiseEnergy;
+  private float lowerEnergy;
+
+  private int rate = LOW_RATE;
+
+  /*
+   * When the readings were last above the lower level. A still phone never
+   * gets there, since the lower level is kept above gravity alone.
+   */
+  private long lastActiveNanos;
+
+  /* Timestamp of the previous reading, if there was one. */
+  private long lastSampleNanos;
+  private boolean hasLastSample = false;
+
+  /* Sensor time spent at each rate in ns, indexed by rate. */
+  private final long[] nanosAtRate = new long[2];
+
+  /**
+   * @param threshold the squared reading that triggers a shake
+   */
+  public SamplingGovernor(float threshold) {
+    setThreshold(threshold);
+  }
+
+  /**
+   * @param threshold the squared reading that triggers a shake
+   */
+  public void setThreshold(float threshold) {
+    raiseEnergy = Math.max(threshold * RAISE_FRACTION, MIN_RAISE_ENERGY);
+    lowerEnergy = Math.max(threshold * LOWER_FRACTION, MIN_LOWER_ENERGY);
+  }
+
+  /**
+   * Process one accelerometer reading.
+   * 
+   * @return true if the sampling rate should change
+   */
+  public boolean onSample(long timestampNanos, float x, float y, float z) {
+    if (hasLastSample) {
+      nanosAtRate[rate] += timestampNanos - lastSampleNanos;
+    } else {
+      // Treat the start of the readings as activity.
+      lastActiveNanos = timestampNanos;
+    }
+    lastSampleNanos = timestampNanos;
+    hasLastSample = true;
+
+    float squaredX = x * x;
+    float energy = Math.max(squaredX + y * y, squaredX + z * z);
+    if (energy > lowerEnergy) {
+      lastActiveNanos = timestampNanos;
+    }
+
+    if (rate == LOW_RATE) {
+      if (energy > raiseEnergy) {
+        rate = HIGH_RATE;
+        return true;
+      }
+    } else if (timestampNanos - lastActiveNanos > QUIET_NANOS) {
+      rate = LOW_RATE;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns how long the readings have been below the lower level, in ns of
+   * sensor time as of the given reading timestamp.
+   */
+  public long getQuietNanos(long timestampNanos) {
+    return hasLastSample ? timestampNanos - lastActiveNanos : 0;
+  }
+
+  /**
+   * Returns LOW_RATE or HIGH_RATE.
+   */
+  public int getRate() {
+    return rate;
+  }
+
+  /**
+   * Returns the sensor time spent at the given rate in ns.
+   */
+  public long getNanosAtRate(int rate) {
+    return nanosAtRate[rate];
+  }
+
+  /**
+   * Go back to the low rate. Readings after a reset aren't counted against
+   * the time since the previous reading, but the time totals are kept.
+   */
+  public void reset() {
+    rate = LOW_RATE;
+    hasLastSample = false;
+  }
+}
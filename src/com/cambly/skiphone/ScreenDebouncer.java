@@ -0,0 +1,115 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.PrintWriter;
+
+import android.os.Handler;
+
+/**
+ * Collapses bursts of screen on/off changes into one settled state. Pressing
+ * the power button with gloves on often toggles the screen several times a
+ * second, and each change used to restart the sensors and relaunch the app.
+ * 
+ * The first change after a quiet period is passed on right away. Changes
+ * within SETTLE_MILLIS of it are held, and only the state the screen settles
+ * in is passed on, if it differs. Changes that never get passed on are
+ * counted as absorbed.
+ * 
+ * Must be used on the handler's thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ScreenDebouncer {
+  public interface Listener {
+    public void onScreenSettled(boolean isScreenOn);
+  }
+
+  /* How long the screen must stay in a state before it is passed on. */
+  private static final long SETTLE_MILLIS = 500;
+
+  private final Handler handler;
+  private final Listener listener;
+
+  /* The last state passed on, if any. */
+  private boolean hasSettled = false;
+  private boolean settledState;
+
+  /* The latest state seen. */
+  private boolean latestState;
+
+  /* Whether changes are being held until the screen settles. */
+  private boolean isHolding = false;
+
+  /* Counters for dumpsys. */
+  private volatile int changes = 0;
+  private volatile int settledChanges = 0;
+
+  private final Runnable settleCallback = new Runnable() {
+    public void run() {
+      if (latestState != settledState) {
+        settle(latestState);
+        handler.postDelayed(this, SETTLE_MILLIS);
+      } else {
+        isHolding = false;
+      }
+    }
+  };
+
+  public ScreenDebouncer(Handler handler, Listener listener) {
+    this.handler = handler;
+    this.listener = listener;
+  }
+
+  /**
+   * Called when the screen turns on or off.
+   */
+  public void onScreenChanged(boolean isScreenOn) {
+    changes++;
+    latestState = isScreenOn;
+    if (isHolding) {
+      return;
+    }
+    if (!hasSettled || isScreenOn != settledState) {
+      settle(isScreenOn);
+      isHolding = true;
+      handler.postDelayed(settleCallback, SETTLE_MILLIS);
+    }
+  }
+
+  /**
+   * Drop any held change and forget the settled state.
+   */
+  public void reset() {
+    handler.removeCallbacks(settleCallback);
+    isHolding = false;
+    hasSettled = false;
+  }
+
+  public void dump(PrintWriter writer) {
+    int changes = this.changes;
+    int settledChanges = this.settledChanges;
+    writer.println("Screen changes: " + changes + ", passed on: " + settledChanges
+        + ", absorbed: " + (changes - settledChanges));
+  }
+
+  private void settle(boolean isScreenOn) {
+    hasSettled = true;
+    settledState = isScreenOn;
+    settledChanges++;
+    listener.onScreenSettled(isScreenOn);
+  }
+}
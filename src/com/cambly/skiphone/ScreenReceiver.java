@@ -21,19 +21,25 @@ import android.content.Intent;
 
 /**
  * This {@link BroadcastReceiver} is used to notify the {@link SkiPhoneService}
- * when the screen is on and off.
+ * when the screen is on and off. The service registers it on its own handler,
+ * so changes go straight to the service's {@link ScreenDebouncer} instead of
+ * through startService.
  * 
  * @author kevin@intercambly.com (Kevin Law)
  */
 public class ScreenReceiver extends BroadcastReceiver {
+  private final ScreenDebouncer debouncer;
+
+  public ScreenReceiver(ScreenDebouncer debouncer) {
+    this.debouncer = debouncer;
+  }
+
   @Override
   public void onReceive(Context context, Intent intent) {
-    Intent serviceIntent = new Intent(context, SkiPhoneService.class);
     if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
-      serviceIntent.putExtra(SkiPhoneService.IS_SCREEN_ON_EXTRA, true);
+      debouncer.onScreenChanged(true);
     } else if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
-      serviceIntent.putExtra(SkiPhoneService.IS_SCREEN_ON_EXTRA, false);
+      debouncer.onScreenChanged(false);
     }
-    context.startService(serviceIntent);
   }
 }
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * Owns the sensor registrations for the whole app, so the shake detector and
+ * the camera's orientation tracking share one accelerometer stream instead of
+ * each waking the CPU for their own.
+ * 
+ * Each consumer says which sensor it wants, how often, and how long readings
+ * may be batched in the sensor FIFO. The hub registers each sensor once, at
+ * the fastest rate and shortest latency any consumer asked for, and passes
+ * every reading to all the sensor's consumers. Consumers may get readings
+ * more often than they asked for.
+ * 
+ * Readings are delivered on the hub's background thread. The consumer list
+ * is copied on write, so delivering a reading takes no lock.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SensorHub {
+  public interface Consumer {
+    /**
+     * Called on the hub's thread. The event is reused after this returns.
+     */
+    void onSensorChanged(SensorEvent event);
+  }
+
+  private static SensorHub instance;
+
+  private final SensorManager sensorManager;
+
+  /* Delivers readings. */
+  private final Handler sensorHandler;
+
+  /* One channel per sensor type that has been asked for. Synchronized on the hub. */
+  private final ArrayList<Channel> channels = new ArrayList<Channel>();
+
+  /**
+   * Returns the app's sensor hub.
+   */
+  public static synchronized SensorHub get(Context context) {
+    if (instance == null) {
+      instance = new SensorHub(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private SensorHub(Context context) {
+    sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    HandlerThread sensorThread = new HandlerThread("SensorHub",
+        Process.THREAD_PRIORITY_BACKGROUND);
+    sensorThread.start();
+    sensorHandler = new Handler(sensorThread.getLooper());
+  }
+
+  /**
+   * Returns whether the device has a sensor of the given type.
+   */
+  public boolean hasSensor(int sensorType) {
+    return sensorManager.getDefaultSensor(sensorType) != null;
+  }
+
+  /**
+   * Start passing readings from a sensor to the consumer, or change the rate
+   * it wants them at.
+   * 
+   * @param samplingPeriodUs the time between readings the consumer needs
+   * @param maxReportLatencyUs how long readings may be held in the sensor FIFO
+   */
+  public synchronized void register(Consumer consumer, int sensorType, int samplingPeriodUs,
+      int maxReportLatencyUs) {
+    Channel channel = getChannel(sensorType);
+    if (channel != null) {
+      channel.put(consumer, samplingPeriodUs, maxReportLatencyUs);
+    }
+  }
+
+  /**
+   * Stop passing readings from a sensor to the consumer. Readings already
+   * being delivered may still arrive.
+   */
+  public synchronized void unregister(Consumer consumer, int sensorType) {
+    Channel channel = getChannel(sensorType);
+    if (channel != null) {
+      channel.remove(consumer);
+    }
+  }
+
+  /**
+   * Stop passing readings from all sensors to the consumer.
+   */
+  public synchronized void unregisterAll(Consumer consumer) {
+    for (int i = 0; i < channels.size(); i++) {
+      channels.get(i).remove(consumer);
+    }
+  }
+
+  /**
+   * Returns the channel for a sensor type, or null if there's no such sensor.
+   * Must be called while synchronized on the hub.
+   */
+  private Channel getChannel(int sensorType) {
+    for (int i = 0; i < channels.size(); i++) {
+      if (channels.get(i).sensor.getType() == sensorType) {
+        return channels.get(i);
+      }
+    }
+    Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+    if (sensor == null) {
+      return null;
+    }
+    Channel channel = new Channel(sensor);
+    channels.add(channel);
+    return channel;
+  }
+
+  /**
+   * The consumers of one sensor. The arrays are replaced, never modified, and
+   * are only replaced while synchronized on the hub.
+   */
+  private class Channel implements SensorEventListener {
+    private final Sensor sensor;
+
+    private volatile Consumer[] consumers = new Consumer[0];
+    private int[] samplingPeriodsUs = new int[0];
+    private int[] maxReportLatenciesUs = new int[0];
+
+    /* What the sensor is registered with, or -1 if it isn't. */
+    private int registeredPeriodUs = -1;
+    private int registeredLatencyUs = -1;
+
+    Channel(Sensor sensor) {
+      this.sensor = sensor;
+    }
+
+    void put(Consumer consumer, int samplingPeriodUs, int maxReportLatencyUs) {
+      int index = indexOf(consumer);
+      int size = consumers.length;
+      Consumer[] newConsumers = consumers;
+      if (index < 0) {
+        index = size;
+        newConsumers = new Consumer[size + 1];
+        System.arraycopy(consumers, 0, newConsumers, 0, size);
+        newConsumers[index] = consumer;
+      }
+      int[] newPeriods = new int[newConsumers.length];
+      int[] newLatencies = new int[newConsumers.length];
+      System.arraycopy(samplingPeriodsUs, 0, newPeriods, 0, size);
+      System.arraycopy(maxReportLatenciesUs, 0, newLatencies, 0, size);
+      newPeriods[index] = samplingPeriodUs;
+      newLatencies[index] = maxReportLatencyUs;
+      update(newConsumers, newPeriods, newLatencies);
+    }
+
+    void remove(Consumer consumer) {
+      int index = indexOf(consumer);
+      if (index < 0) {
+        return;
+      }
+      int size = consumers.length - 1;
+      Consumer[] newConsumers = new Consumer[size];
+      int[] newPeriods = new int[size];
+      int[] newLatencies = new int[size];
+      for (int i = 0, j = 0; i <= size; i++) {
+        if (i != index) {
+          newConsumers[j] = consumers[i];
+          newPeriods[j] = samplingPeriodsUs[i];
+          newLatencies[j] = maxReportLatenciesUs[i];
+          j++;
+        }
+      }
+      update(newConsumers, newPeriods, newLatencies);
+    }
+
+    private int indexOf(Consumer consumer) {
+      for (int i = 0; i < consumers.length; i++) {
+        if (consumers[i] == consumer) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /**
+     * Swap in the new consumers and re-register the sensor if the fastest
+     * rate or shortest latency wanted has changed.
+     */
+    private void update(Consumer[] newConsumers, int[] newPeriods, int[] newLatencies) {
+      samplingPeriodsUs = newPeriods;
+      maxReportLatenciesUs = newLatencies;
+      consumers = newConsumers;
+
+      int periodUs = Integer.MAX_VALUE;
+      int latencyUs = Integer.MAX_VALUE;
+      for (int i = 0; i < newConsumers.length; i++) {
+        periodUs = Math.min(periodUs, newPeriods[i]);
+        latencyUs = Math.min(latencyUs, newLatencies[i]);
+      }
+      if (newConsumers.length == 0) {
+        if (registeredPeriodUs >= 0) {
+          sensorManager.unregisterListener(this);
+          registeredPeriodUs = -1;
+          registeredLatencyUs = -1;
+        }
+        return;
+      }
+      if (periodUs == registeredPeriodUs && latencyUs == registeredLatencyUs) {
+        return;
+      }
+      if (registeredPeriodUs >= 0) {
+        sensorManager.unregisterListener(this);
+      }
+      registerListener(periodUs, latencyUs);
+      registeredPeriodUs = periodUs;
+      registeredLatencyUs = latencyUs;
+    }
+
+    private void registerListener(int periodUs, int latencyUs) {
+      if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD) {
+        // Before Gingerbread only the SENSOR_DELAY constants are understood.
+        int delay = periodUs <= 20000 ? SensorManager.SENSOR_DELAY_GAME
+            : periodUs < 200000 ? SensorManager.SENSOR_DELAY_UI
+                : SensorManager.SENSOR_DELAY_NORMAL;
+        sensorManager.registerListener(this, sensor, delay, sensorHandler);
+      } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && latencyUs > 0
+          && sensor.getFifoMaxEventCount() > 0) {
+        sensorManager.registerListener(this, sensor, periodUs, latencyUs, sensorHandler);
+      } else {
+        sensorManager.registerListener(this, sensor, periodUs, sensorHandler);
+      }
+    }
+
+    public void onSensorChanged(SensorEvent event) {
+      Consumer[] consumers = this.consumers;
+      for (int i = 0; i < consumers.length; i++) {
+        consumers[i].onSensorChanged(event);
+      }
+    }
+
+    public void onAccuracyChanged(Sensor sensor, int accuracy) {
+      DebugTrace.record(DebugTrace.SENSOR_ACCURACY, accuracy);
+    }
+  }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Records accelerometer readings to a compact binary trace file so they can
+ * be replayed offline with {@link SensorTraceReplayer}.
+ * 
+ * The file starts with an 8 byte header (magic and version) followed by fixed
+ * size little endian records: the sensor timestamp in ns and the x, y and z
+ * readings. Records are appended through a memory mapped window that is
+ * remapped as the file grows, so appending is a handful of stores and never
+ * allocates except when a new window is mapped.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SensorTraceRecorder {
+  /* "SKTR" */
+  static final int MAGIC = 0x534b5452;
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 8;
+
+  /* Timestamp plus three floats. */
+  static final int RECORD_SIZE = 8 + 3 * 4;
+
+  /* The size of each memory mapped window. */
+  private static final int WINDOW_SIZE = 1 << 20;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  /* The currently mapped window, or null once closed. */
+  private MappedByteBuffer window;
+
+  /* File offset of the start of the current window. */
+  private long windowStart = 0;
+
+  /**
+   * Create a new trace, replacing any existing file.
+   */
+  public SensorTraceRecorder(File traceFile) throws IOException {
+    file = new RandomAccessFile(traceFile, "rw");
+    channel = file.getChannel();
+    channel.truncate(0);
+    mapWindow();
+    window.putInt(MAGIC);
+    window.putInt(VERSION);
+  }
+
+  /**
+   * Append a reading to the trace. Does nothing if the recorder is closed.
+   */
+  public synchronized void append(long timestampNanos, float x, float y, float z)
+      throws IOException {
+    if (window == null) {
+      return;
+    }
+    if (window.remaining() < RECORD_SIZE) {
+      windowStart += window.position();
+      mapWindow();
+    }
+    window.putLong(timestampNanos);
+    window.putFloat(x);
+    window.putFloat(y);
+    window.putFloat(z);
+  }
+
+  /**
+   * Trim the unused end of the trace and close the file.
+   */
+  public synchronized void close() throws IOException {
+    if (window == null) {
+      return;
+    }
+    long length = windowStart + window.position();
+    window.force();
+    window = null;
+    try {
+      channel.truncate(length);
+    } finally {
+      file.close();
+    }
+  }
+
+  private void mapWindow() throws IOException {
+    window = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, WINDOW_SIZE);
+    window.order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
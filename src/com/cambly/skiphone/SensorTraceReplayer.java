@@ -0,0 +1,209 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Replays traces written by {@link SensorTraceRecorder} through a
+ * {@link ShakeAnalyzer}, or through a whole {@link GestureEngine} as the
+ * detector runs it, as fast as possible. This class only depends on the JDK,
+ * so it can be compiled together with the gesture classes and run on a
+ * desktop JVM to check thresholds against recorded ski runs:
+ * 
+ * <pre>
+ * java com.cambly.skiphone.SensorTraceReplayer run1.trace run2.trace
+ * </pre>
+ * 
+ * Passing --expect with a comma separated list of gesture names replays each
+ * trace through a GestureEngine and fails unless it emits exactly those
+ * gestures in that order:
+ * 
+ * <pre>
+ * java com.cambly.skiphone.SensorTraceReplayer --expect vertical_shake,vertical_shake \
+ *     answer_then_hang_up.trace
+ * </pre>
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SensorTraceReplayer {
+  /**
+   * The outcome of replaying a trace.
+   */
+  public static class Result {
+    public long samples;
+    public int verticalShakes;
+    public int horizontalShakes;
+
+    /* The gestures emitted, in order. Only filled in when replaying through an engine. */
+    private int[] gestures = new int[16];
+    private int gestureCount = 0;
+
+    /* Wall clock time spent in the analyzer. */
+    public long elapsedNanos;
+
+    /**
+     * Returns the gestures the engine emitted, in order.
+     */
+    public int[] getGestures() {
+      int[] result = new int[gestureCount];
+      System.arraycopy(gestures, 0, result, 0, gestureCount);
+      return result;
+    }
+
+    /**
+     * Returns the emitted gestures as a comma separated list of names.
+     */
+    public String describeGestures() {
+      StringBuilder builder = new StringBuilder();
+      for (int i = 0; i < gestureCount; i++) {
+        if (i > 0) {
+          builder.append(',');
+        }
+        builder.append(Gesture.name(gestures[i]));
+      }
+      return builder.toString();
+    }
+
+    private void addGesture(int gesture) {
+      if (gestureCount == gestures.length) {
+        int[] larger = new int[2 * gestures.length];
+        System.arraycopy(gestures, 0, larger, 0, gestureCount);
+        gestures = larger;
+      }
+      gestures[gestureCount++] = gesture;
+      if (gesture == Gesture.VERTICAL_SHAKE) {
+        verticalShakes++;
+      } else if (gesture == Gesture.HORIZONTAL_SHAKE) {
+        horizontalShakes++;
+      }
+    }
+
+    public double samplesPerSecond() {
+      return elapsedNanos == 0 ? 0 : samples * 1e9 / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d samples, %d vertical, %d horizontal, %.0f samples/s", samples,
+          verticalShakes, horizontalShakes, samplesPerSecond());
+    }
+  }
+
+  /**
+   * Replay a trace through the analyzer.
+   */
+  public static Result replay(File traceFile, ShakeAnalyzer analyzer) throws IOException {
+    MappedByteBuffer trace = map(traceFile);
+    Result result = new Result();
+    long start = System.nanoTime();
+    int lastRecord = trace.limit() - SensorTraceRecorder.RECORD_SIZE;
+    for (int offset = SensorTraceRecorder.HEADER_SIZE; offset <= lastRecord;
+        offset += SensorTraceRecorder.RECORD_SIZE) {
+      long timestampNanos = trace.getLong(offset);
+      if (timestampNanos == 0) {
+        // The unused end of a trace that wasn't closed cleanly.
+        break;
+      }
+      switch (analyzer.onSample(timestampNanos, trace.getFloat(offset + 8),
+          trace.getFloat(offset + 12), trace.getFloat(offset + 16))) {
+      case ShakeAnalyzer.VERTICAL_SHAKE:
+        result.verticalShakes++;
+        break;
+      case ShakeAnalyzer.HORIZONTAL_SHAKE:
+        result.horizontalShakes++;
+        break;
+      }
+      result.samples++;
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Replay a trace through a gesture engine, collecting every gesture it
+   * emits in order.
+   */
+  public static Result replay(File traceFile, GestureEngine engine) throws IOException {
+    MappedByteBuffer trace = map(traceFile);
+    Result result = new Result();
+    long start = System.nanoTime();
+    int lastRecord = trace.limit() - SensorTraceRecorder.RECORD_SIZE;
+    for (int offset = SensorTraceRecorder.HEADER_SIZE; offset <= lastRecord;
+        offset += SensorTraceRecorder.RECORD_SIZE) {
+      long timestampNanos = trace.getLong(offset);
+      if (timestampNanos == 0) {
+        break;
+      }
+      int gesture = engine.onAccelerometer(timestampNanos, trace.getFloat(offset + 8),
+          trace.getFloat(offset + 12), trace.getFloat(offset + 16));
+      if (gesture != Gesture.NONE) {
+        result.addGesture(gesture);
+      }
+      result.samples++;
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Map a trace into memory and check its header.
+   */
+  static MappedByteBuffer map(File traceFile) throws IOException {
+    RandomAccessFile file = new RandomAccessFile(traceFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Trace too large: " + traceFile);
+      }
+      MappedByteBuffer trace = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      trace.order(ByteOrder.LITTLE_ENDIAN);
+      if (trace.limit() < SensorTraceRecorder.HEADER_SIZE
+          || trace.getInt(0) != SensorTraceRecorder.MAGIC
+          || trace.getInt(4) != SensorTraceRecorder.VERSION) {
+        throw new IOException("Not a sensor trace: " + traceFile);
+      }
+      return trace;
+    } finally {
+      file.close();
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length >= 2 && "--expect".equals(args[0])) {
+      boolean isPassing = true;
+      for (int i = 2; i < args.length; i++) {
+        Result result = replay(new File(args[i]), new GestureEngine(new ShakeAnalyzer()));
+        boolean isMatch = result.describeGestures().equals(args[1]);
+        System.out.println(args[i] + ": " + (isMatch ? "ok " : "FAILED ")
+            + result.describeGestures());
+        isPassing &= isMatch;
+      }
+      if (!isPassing) {
+        System.exit(1);
+      }
+      return;
+    }
+    for (String path : args) {
+      System.out.println(path + ": " + replay(new File(path), new ShakeAnalyzer()));
+    }
+  }
+}
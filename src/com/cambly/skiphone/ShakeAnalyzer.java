@@ -0,0 +1,161 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * The shake detection algorithm used by {@link ShakeDetector}, separated from
+ * the Android sensor APIs so it can also be driven offline from recorded
+ * traces on a plain JVM.
+ * 
+ * The analyzer remembers the last second of accelerometer readings projected
+ * into the XZ (horizontal when phone is in hand) and XY planes (parallel to
+ * face of phone). The window is keyed off the sensor timestamps, so detection
+ * behaves the same whatever rate the device delivers readings at.
+ * If the mean of recent readings exceeds the threshold in only one plane, a
+ * shake in that direction is reported and the sensor history is cleared.
+ * 
+ * This class is not thread safe and does not allocate after construction.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ShakeAnalyzer {
+  /* Results returned by onSample. */
+  public static final int NO_SHAKE = Gesture.NONE;
+  public static final int VERTICAL_SHAKE = Gesture.VERTICAL_SHAKE;
+  public static final int HORIZONTAL_SHAKE = Gesture.HORIZONTAL_SHAKE;
+
+  /*
+   * How far back to look when computing the mean, in ns. This used to be the
+   * last 5 readings, which is one second at the nominal normal sensor rate,
+   * but depended on the rate each device actually delivers.
+   */
+  private final static long WINDOW_NANOS = 1000L * 1000 * 1000;
+
+  /* Enough room for a window of readings at the fastest sensor rates. */
+  private final static int MAX_WINDOW_SAMPLES = 256;
+
+  /* The minimum amount of time to wait between events in ns. */
+  private final static long WAIT_TIME_NS = 2000L * 1000 * 1000;
+
+  /* History of recent sensor readings. */
+  private final SampleWindow previousXYSensorValues = new SampleWindow(MAX_WINDOW_SAMPLES,
+      WINDOW_NANOS);
+  private final SampleWindow previousXZSensorValues = new SampleWindow(MAX_WINDOW_SAMPLES,
+      WINDOW_NANOS);
+
+  /* Minimum squared sensor values to trigger shake events. */
+  private volatile ShakeThresholds thresholds = ShakeThresholds.DEFAULT;
+
+  /* Readings before this sensor time are ignored after a shake. */
+  private long nextShakeAllowedNanos = Long.MIN_VALUE;
+
+  /* The most recently computed means. */
+  private float xyMeanSquared = 0;
+  private float xzMeanSquared = 0;
+
+  /**
+   * Process one accelerometer reading.
+   * 
+   * @param timestampNanos the sensor timestamp of the reading in ns
+   * @return NO_SHAKE, VERTICAL_SHAKE or HORIZONTAL_SHAKE
+   */
+  public int onSample(long timestampNanos, float x, float y, float z) {
+    // Don't trigger shake events if one was triggered recently.
+    if (isWaiting(timestampNanos)) {
+      return NO_SHAKE;
+    }
+
+    float squaredXSensorValue = sqr(x);
+    previousXYSensorValues.add(timestampNanos, sqr(y) + squaredXSensorValue);
+    previousXZSensorValues.add(timestampNanos, sqr(z) + squaredXSensorValue);
+
+    ShakeThresholds thresholds = this.thresholds;
+    xyMeanSquared = previousXYSensorValues.mean();
+    xzMeanSquared = previousXZSensorValues.mean();
+
+    // Report a shake if the shaking exceeds the threshold in only one plane.
+    // If it exceeds the threshold in multiple planes then wait until the
+    // shaking isn't in an ambiguous direction.
+    // TODO: Maybe set a lower ambiguity threshold?
+    int shake = NO_SHAKE;
+    if (xyMeanSquared > xzMeanSquared) {
+      if (xyMeanSquared > thresholds.vertical && xzMeanSquared < thresholds.horizontal) {
+        shake = VERTICAL_SHAKE;
+      }
+    } else {
+      if (xzMeanSquared > thresholds.horizontal && xyMeanSquared < thresholds.vertical) {
+        shake = HORIZONTAL_SHAKE;
+      }
+    }
+
+    if (shake != NO_SHAKE) {
+      nextShakeAllowedNanos = timestampNanos + WAIT_TIME_NS;
+      clearHistory();
+    }
+    return shake;
+  }
+
+  /**
+   * Returns true if readings at the given time are ignored because a shake
+   * was detected recently.
+   */
+  public boolean isWaiting(long timestampNanos) {
+    return timestampNanos < nextShakeAllowedNanos;
+  }
+
+  /**
+   * Use new thresholds. May be called from any thread; the next reading
+   * processed uses them.
+   */
+  public void setThresholds(ShakeThresholds thresholds) {
+    this.thresholds = thresholds;
+  }
+
+  public ShakeThresholds getThresholds() {
+    return thresholds;
+  }
+
+  /**
+   * Forget all previous readings.
+   */
+  public void reset() {
+    clearHistory();
+    nextShakeAllowedNanos = Long.MIN_VALUE;
+  }
+
+  /**
+   * Returns the mean squared XY reading as of the last processed sample.
+   */
+  public float getXYMeanSquared() {
+    return xyMeanSquared;
+  }
+
+  /**
+   * Returns the mean squared XZ reading as of the last processed sample.
+   */
+  public float getXZMeanSquared() {
+    return xzMeanSquared;
+  }
+
+  private void clearHistory() {
+    previousXYSensorValues.clear();
+    previousXZSensorValues.clear();
+  }
+
+  private static float sqr(float x) {
+    return x * x;
+  }
+}
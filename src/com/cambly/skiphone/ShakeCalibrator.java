@@ -0,0 +1,119 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Learns shake thresholds for the person using the phone. The calibrator
+ * tracks a high quantile of the mean squared XY and XZ readings, which is
+ * dominated by how much the phone moves around during normal use. The
+ * thresholds are set a margin above that, so people who move a lot get
+ * higher thresholds and fewer false shakes, and people who don't can shake
+ * more gently. The thresholds are clamped to a sane range and the defaults
+ * are used until enough readings have been seen.
+ * 
+ * Memory use is constant however long the calibrator runs, and the state can
+ * be saved as a short string.
+ * 
+ * This class is not thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ShakeCalibrator {
+  /* The quantile of normal motion to track. */
+  private static final double QUANTILE = 0.98;
+
+  /* How far above normal motion the thresholds are set. */
+  private static final float MARGIN = 1.5f;
+
+  /* The range the thresholds are clamped to. */
+  private static final float MIN_THRESHOLD = 150.0f;
+  private static final float MAX_THRESHOLD = 400.0f;
+
+  /* Readings needed before the calibrated thresholds are used. */
+  private static final int MIN_SAMPLES = 20000;
+
+  private final P2Quantile xyQuantile;
+  private final P2Quantile xzQuantile;
+
+  public ShakeCalibrator() {
+    this(null);
+  }
+
+  /**
+   * Restore a calibrator saved with {@link #encode}. Starts from scratch if
+   * the state is null, can't be parsed or isn't valid, e.g. because the two
+   * estimators haven't seen the same number of readings.
+   */
+  public ShakeCalibrator(String state) {
+    String xyState = null;
+    String xzState = null;
+    if (state != null) {
+      int separator = state.indexOf(';');
+      if (separator >= 0) {
+        xyState = state.substring(0, separator);
+        xzState = state.substring(separator + 1);
+      }
+    }
+    P2Quantile xy = P2Quantile.decode(QUANTILE, xyState);
+    P2Quantile xz = P2Quantile.decode(QUANTILE, xzState);
+    if (xy.getCount() != xz.getCount()) {
+      xy = new P2Quantile(QUANTILE);
+      xz = new P2Quantile(QUANTILE);
+    }
+    xyQuantile = xy;
+    xzQuantile = xz;
+  }
+
+  /**
+   * Process the mean squared readings for one sample. Samples that aren't
+   * finite are ignored.
+   */
+  public void add(float xyMeanSquared, float xzMeanSquared) {
+    if (Float.isNaN(xyMeanSquared) || Float.isInfinite(xyMeanSquared)
+        || Float.isNaN(xzMeanSquared) || Float.isInfinite(xzMeanSquared)) {
+      return;
+    }
+    xyQuantile.add(xyMeanSquared);
+    xzQuantile.add(xzMeanSquared);
+  }
+
+  /**
+   * Returns the thresholds learned so far.
+   */
+  public ShakeThresholds getThresholds() {
+    if (xyQuantile.getCount() < MIN_SAMPLES) {
+      return ShakeThresholds.DEFAULT;
+    }
+    return new ShakeThresholds(threshold(xyQuantile, ShakeThresholds.DEFAULT.vertical),
+        threshold(xzQuantile, ShakeThresholds.DEFAULT.horizontal));
+  }
+
+  public String encode() {
+    return xyQuantile.encode() + ";" + xzQuantile.encode();
+  }
+
+  /**
+   * Returns the threshold for an estimator, or the default if its estimate
+   * isn't finite.
+   */
+  private static float threshold(P2Quantile quantile, float defaultThreshold) {
+    float threshold = (float) quantile.getQuantile() * MARGIN;
+    if (Float.isNaN(threshold) || Float.isInfinite(threshold)) {
+      return defaultThreshold;
+    }
+    return Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, threshold));
+  }
+}
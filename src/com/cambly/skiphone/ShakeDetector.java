@@ -15,15 +15,16 @@
  */
 package com.cambly.skiphone;
 
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorEvent;
-import android.hardware.SensorEventListener;
-import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -31,56 +32,215 @@ import android.util.Log;
  * sensor readings over its lifetime, so it should be used sparingly to save
  * battery life. Shake events are passed to the ShakeListener interface.
  * 
- * The detector remembers recent accelerometer readings projected into the XZ
- * (horizontal when phone is in hand) and XY planes (parallel to face of phone).
- * If the mean of recent readings exceeds the threshold, the callback for larger
- * reading is called and the sensor history is cleared.
+ * The detection itself is done by a {@link GestureEngine}, which also looks
+ * for the other {@link Gesture}s. At the high sampling rate the gyroscope is
+ * used too, if the device has one. Readings can also
+ * be recorded to a trace file for offline replay with
+ * {@link SensorTraceReplayer}.
+ * 
+ * Readings come from the app's {@link SensorHub} and are processed on its
+ * background thread. Only the final shake decision is posted back to the thread that created the
+ * detector, which is where the ShakeListener is called.
  * 
  * @author kevin@intercambly.com (Kevin Law)
  */
-public class ShakeDetector implements SensorEventListener {
+public class ShakeDetector implements SensorHub.Consumer, PocketDetector.Listener {
   public interface ShakeListener {
     void onVerticalShake();
 
     void onHorizontalShake();
+
+    /**
+     * Called for the gestures other than the vertical and horizontal shakes.
+     * 
+     * @param gesture one of the {@link Gesture} constants
+     */
+    void onGesture(int gesture);
   }
 
   private final static String LOG_PREFIX = "ShakeDetector";
 
-  /* Minimum squared sensor values to trigger shake events. */
-  private final static float HORIZONTAL_THRESHOLD = 200.0f;
-  private final static float VERTICAL_THRESHOLD = 200.0f;
-
-  /* The number of sensor readings to use to compute the mean. */
-  private final static int SENSOR_HISTORY = 5;
+  /*
+   * Time between readings at each rate in us, indexed by governor rate. The
+   * low rate is SENSOR_DELAY_NORMAL, which the detector always used before, so
+   * a shake is never sampled more coarsely than it was. Readings are
+   * delivered as they are taken at both rates; holding them in the sensor
+   * FIFO would delay the first shake by the batch latency.
+   */
+  private final static int[] SAMPLING_PERIOD_US = { 200000, 100000 };
 
-  /* The minimum amount of time to wait between events in ms. */
-  private final static long WAIT_TIME = 2000;
+  /*
+   * Sensor to detection latencies above this are from a sensor clock that
+   * doesn't match elapsedRealtimeNanos(), and aren't recorded.
+   */
+  private final static long MAX_SENSOR_LATENCY_NANOS = 10L * 1000 * 1000 * 1000;
 
   private final ShakeListener listener;
 
-  /* Used to access the accelerometer. */
-  private SensorManager sensorManager;
+  /* Delivers the sensor readings. */
+  private final SensorHub sensorHub;
 
-  /* History of recent sensor readings. */
-  private LinkedList<Float> previousXYSensorValues = new LinkedList<Float>();
-  private LinkedList<Float> previousXZSensorValues = new LinkedList<Float>();
+  /* Posts shake decisions back to the thread that created the detector. */
+  private final Handler listenerHandler;
 
-  /* The time of the last shake event. */
-  private long lastEvent = 0;
+  /*
+   * Whether readings are wanted from the hub. Synchronized on the detector, so
+   * readings delivered just after stop() are dropped.
+   */
+  private boolean isSensing = false;
+
+  /*
+   * Whether the gesture engine should be reset before the next reading. The
+   * engine is only used on the sensor thread, so start() asks for the reset
+   * instead of doing it while a late reading may be in the engine.
+   * Synchronized on the detector.
+   */
+  private boolean isResetPending = false;
 
-  public ShakeDetector(Context context, ShakeListener listener) {
+  /* Whether the device has a gyroscope. */
+  private final boolean hasGyroscope;
+
+  /*
+   * Whether the detector is started. Only accessed on the listener thread, so
+   * shakes posted just before stop() are dropped.
+   */
+  private boolean isStarted = false;
+
+  /*
+   * When each gesture was last detected, by System.nanoTime(). Written on the
+   * sensor thread before the gesture's callback is posted.
+   */
+  private final long[] detectedNanos = new long[Gesture.COUNT];
+
+  /* When the gesture being delivered was detected. Only used on the listener thread. */
+  private long gestureNanos = 0;
+
+  private final Runnable verticalShakeCallback = new Runnable() {
+    public void run() {
+      if (deliver(Gesture.VERTICAL_SHAKE)) {
+        listener.onVerticalShake();
+      }
+    }
+  };
+
+  private final Runnable horizontalShakeCallback = new Runnable() {
+    public void run() {
+      if (deliver(Gesture.HORIZONTAL_SHAKE)) {
+        listener.onHorizontalShake();
+      }
+    }
+  };
+
+  /* Callbacks for the other gestures, indexed by gesture. */
+  private final Runnable[] gestureCallbacks = new Runnable[Gesture.COUNT];
+
+  /* Detects gestures in the sensor readings. Only used on the sensor thread. */
+  private final ShakeAnalyzer analyzer = new ShakeAnalyzer();
+  private final GestureEngine engine = new GestureEngine(analyzer);
+
+  /*
+   * Chooses the sampling rate. Only used on the sensor thread while started,
+   * and synchronized on the detector.
+   */
+  private final SamplingGovernor governor;
+
+  /* Learns the thresholds. Synchronized on the detector. */
+  private final ShakeCalibrator calibrator;
+
+  /*
+   * Called on the listener thread once the readings have been quiet for
+   * idleNanos. Synchronized on the detector.
+   */
+  private Runnable idleListener;
+  private long idleNanos;
+  private boolean isIdleReported;
+
+  private final Runnable idleCallback = new Runnable() {
+    public void run() {
+      if (isStarted) {
+        idleListener.run();
+      }
+    }
+  };
+
+  /* Records sensor readings when tracing is enabled. */
+  private volatile SensorTraceRecorder traceRecorder;
+
+  /* Time one in this many readings to estimate what suppression saves. */
+  private static final int TIMING_INTERVAL = 64;
+
+  /*
+   * Suppresses detection while the phone is in a pocket. isPocketed is
+   * synchronized on the detector, but also read unsynchronized on the sensor
+   * thread.
+   */
+  private final PocketDetector pocketDetector;
+  private volatile boolean isPocketed = false;
+
+  /*
+   * Runs the plain thresholds over the suppressed readings to count the shakes
+   * that would have been detected. Only used on the sensor thread.
+   */
+  private final ShakeAnalyzer pocketAnalyzer = new ShakeAnalyzer();
+
+  /*
+   * Pocket statistics. Written on the sensor thread and read by dump(). The
+   * timings are totals over the sampled readings, in ns.
+   */
+  private volatile int pocketings = 0;
+  private volatile long suppressedReadings = 0;
+  private volatile int avoidedShakes = 0;
+  private volatile long readings = 0;
+  private volatile long engineNanos = 0;
+  private volatile int engineTimings = 0;
+  private volatile long pocketNanos = 0;
+  private volatile int pocketTimings = 0;
+
+  public ShakeDetector(Context context, ShakeListener listener, ShakeCalibrator calibrator) {
     this.listener = listener;
-    sensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+    this.calibrator = calibrator;
+    ShakeThresholds thresholds = calibrator.getThresholds();
+    analyzer.setThresholds(thresholds);
+    governor = new SamplingGovernor(thresholds.min());
+    sensorHub = SensorHub.get(context);
+    hasGyroscope = sensorHub.hasSensor(Sensor.TYPE_GYROSCOPE);
+    listenerHandler = new Handler();
+    pocketDetector = new PocketDetector(context, this);
+
+    gestureCallbacks[Gesture.VERTICAL_SHAKE] = verticalShakeCallback;
+    gestureCallbacks[Gesture.HORIZONTAL_SHAKE] = horizontalShakeCallback;
+    for (int i = Gesture.HORIZONTAL_SHAKE + 1; i < Gesture.COUNT; i++) {
+      final int gesture = i;
+      gestureCallbacks[i] = new Runnable() {
+        public void run() {
+          if (deliver(gesture)) {
+            listener.onGesture(gesture);
+          }
+        }
+      };
+    }
   }
 
   /**
-   * Call to start taking readings from the accelerometer.
+   * Call to start taking readings from the accelerometer. Must be called on
+   * the thread that created the detector.
    */
   public void start() {
-    // Start listening to the accelerometer.
-    sensorManager.registerListener(this, sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
-        SensorManager.SENSOR_DELAY_NORMAL);
+    if (isStarted) {
+      return;
+    }
+    isStarted = true;
+
+    synchronized (this) {
+      // Start listening to the accelerometer at the low rate.
+      isSensing = true;
+      isResetPending = true;
+      governor.reset();
+      isIdleReported = false;
+      isPocketed = false;
+      registerSensors();
+    }
+    pocketDetector.start();
   }
 
   /**
@@ -88,69 +248,314 @@ public class ShakeDetector implements SensorEventListener {
    * when the object is no longer needed to save battery life.
    */
   public void stop() {
-    sensorManager.unregisterListener(this);
+    if (!isStarted) {
+      return;
+    }
+    isStarted = false;
+
+    pocketDetector.stop();
+    synchronized (this) {
+      sensorHub.unregisterAll(this);
+      isSensing = false;
+
+      DebugTrace.record(DebugTrace.RATE_TIMES,
+          (int) (governor.getNanosAtRate(SamplingGovernor.LOW_RATE) / 1000000),
+          (int) (governor.getNanosAtRate(SamplingGovernor.HIGH_RATE) / 1000000));
+    }
   }
 
-  public void onAccuracyChanged(Sensor sensor, int accuracy) {
-    Log.d(LOG_PREFIX, "Accuracy: " + accuracy);
+  /**
+   * Returns the sensor time spent sampling at the given SamplingGovernor rate
+   * in ns.
+   */
+  public synchronized long getNanosAtRate(int rate) {
+    return governor.getNanosAtRate(rate);
   }
 
-  public void onSensorChanged(SensorEvent event) {
-    Log.d(LOG_PREFIX, "Sensor changed: " + Arrays.toString(event.values) + " : " + event.accuracy);
+  /**
+   * Only detect the gestures in a mask of {@link Gesture#bit}s. Can be called
+   * at any time.
+   */
+  public void setEnabledGestures(int enabledGestures) {
+    engine.setEnabledGestures(enabledGestures);
+  }
+
+  /**
+   * Detect shakes with a trained model instead of the thresholds. Must be
+   * called before the detector is started.
+   */
+  public void setShakeModel(ShakeTreeModel model) {
+    engine.setClassifier(new TreeShakeClassifier(model));
+  }
+
+  /**
+   * Switch to the thresholds the calibrator has learned so far. Returns the
+   * calibration state so it can be saved.
+   */
+  public synchronized String recalibrate() {
+    ShakeThresholds thresholds = calibrator.getThresholds();
+    if (thresholds != analyzer.getThresholds()) {
+      DebugTrace.record(DebugTrace.THRESHOLDS, 0, 0, thresholds.vertical, thresholds.horizontal,
+          0);
+    }
+    analyzer.setThresholds(thresholds);
+    governor.setThreshold(thresholds.min());
+    return calibrator.encode();
+  }
 
-    // Don't trigger shake events if one was triggered recently.
-    if (System.currentTimeMillis() - lastEvent < WAIT_TIME) {
+  /**
+   * Set a listener to be called once the readings have stayed well below the
+   * shake threshold for the given time after the detector is started. The
+   * listener is called on the thread that created the detector.
+   */
+  public synchronized void setIdleListener(Runnable listener, long idleMillis) {
+    idleListener = listener;
+    idleNanos = idleMillis * 1000 * 1000;
+  }
+
+  /**
+   * Called on the sensor thread when the phone goes into or comes out of a
+   * pocket. While it's pocketed the accelerometer stays at the low rate, the
+   * gyroscope is off and the readings skip the gesture engine. Coming out
+   * starts detection again straight away from a clean state.
+   */
+  public synchronized void onPocketChanged(boolean isPocketed) {
+    if (!isSensing) {
       return;
     }
+    this.isPocketed = isPocketed;
+    DebugTrace.record(DebugTrace.POCKET, isPocketed ? 1 : 0);
+    if (isPocketed) {
+      pocketings++;
+      pocketAnalyzer.setThresholds(analyzer.getThresholds());
+      pocketAnalyzer.reset();
+    } else {
+      engine.reset();
+    }
+    governor.reset();
+    registerSensors();
+  }
 
-    if (previousXYSensorValues.size() == SENSOR_HISTORY) {
-      previousXYSensorValues.removeFirst();
-      previousXZSensorValues.removeFirst();
+  /**
+   * Register for accelerometer readings at the rate the governor wants, and
+   * for gyroscope readings at the high rate. Stays at the low rate while the
+   * phone is pocketed. Must be called while synchronized on the detector.
+   */
+  private void registerSensors() {
+    int rate = isPocketed ? SamplingGovernor.LOW_RATE : governor.getRate();
+    sensorHub.register(this, Sensor.TYPE_ACCELEROMETER, SAMPLING_PERIOD_US[rate], 0);
+    if (rate == SamplingGovernor.HIGH_RATE && hasGyroscope) {
+      sensorHub.register(this, Sensor.TYPE_GYROSCOPE, SAMPLING_PERIOD_US[rate], 0);
+    } else {
+      sensorHub.unregister(this, Sensor.TYPE_GYROSCOPE);
+    }
+  }
+
+  /**
+   * Re-register the sensors if the governor wants a different rate,
+   * report when the readings have gone quiet and feed the calibrator. Called
+   * on the sensor thread after the analyzer.
+   */
+  private synchronized void updateGovernor(SensorEvent event) {
+    // The detector may have been stopped while this reading was being delivered.
+    if (!isSensing) {
+      return;
+    }
+    // Keep feeding the governor while pocketed so the idle time is still
+    // tracked, but don't let it raise the rate.
+    if (governor.onSample(event.timestamp, event.values[0], event.values[1], event.values[2])
+        && !isPocketed) {
+      DebugTrace.record(DebugTrace.SAMPLING_RATE, governor.getRate());
+      registerSensors();
+    }
+    if (idleListener != null && !isIdleReported
+        && governor.getQuietNanos(event.timestamp) > idleNanos) {
+      isIdleReported = true;
+      listenerHandler.post(idleCallback);
+    }
+    if (!isPocketed && !analyzer.isWaiting(event.timestamp)) {
+      calibrator.add(analyzer.getXYMeanSquared(), analyzer.getXZMeanSquared());
     }
-    float squaredXSensorValue = sqr(event.values[0]);
-    previousXYSensorValues.add(sqr(event.values[1]) + squaredXSensorValue);
-    previousXZSensorValues.add(sqr(event.values[2]) + squaredXSensorValue);
+  }
 
-    float xyMeanSquared = mean(previousXYSensorValues);
-    float xzMeanSquared = mean(previousXZSensorValues);
+  public void onSensorChanged(SensorEvent event) {
+    // The hub delivers from a snapshot of its consumers, so readings can
+    // still arrive during and after stop().
+    if (!beginReading()) {
+      return;
+    }
+    if (event.sensor.getType() == Sensor.TYPE_GYROSCOPE) {
+      engine.onGyroscope(event.timestamp, event.values[0], event.values[1], event.values[2]);
+      return;
+    }
 
-    Log.d(LOG_PREFIX, "Sensor means: XY: " + xyMeanSquared + " XZ: " + xzMeanSquared);
+    DebugTrace.record(DebugTrace.SENSOR_READING, event.accuracy, 0, event.values[0],
+        event.values[1], event.values[2]);
 
-    // Notify the appropriate listener if the shaking exceeds the threshold in
-    // only one plane. If it exceeds the threshold in multiple planes then wait
-    // until the shaking isn't in an ambiguous direction.
-    // TODO: Maybe set a lower ambiguity threshold?
-    if (xyMeanSquared > xzMeanSquared) {
-      if (xyMeanSquared > VERTICAL_THRESHOLD && xzMeanSquared < HORIZONTAL_THRESHOLD) {
-        lastEvent = System.currentTimeMillis();
-        Log.d(LOG_PREFIX, "Vertical shake: v=" + xyMeanSquared + ", h=" + xzMeanSquared);
-        listener.onVerticalShake();
-        clearHistory();
-      }
-    } else {
-      if (xzMeanSquared > HORIZONTAL_THRESHOLD && xyMeanSquared < VERTICAL_THRESHOLD) {
-        lastEvent = System.currentTimeMillis();
-        Log.d(LOG_PREFIX, "Horizontal shake: v=" + xyMeanSquared + ", h=" + xzMeanSquared);
-        listener.onHorizontalShake();
-        clearHistory();
+    SensorTraceRecorder recorder = traceRecorder;
+    if (recorder != null) {
+      try {
+        recorder.append(event.timestamp, event.values[0], event.values[1], event.values[2]);
+      } catch (IOException e) {
+        Log.e(LOG_PREFIX, "Couldn't append to sensor trace.", e);
+        traceRecorder = null;
       }
     }
+
+    if (isPocketed) {
+      suppress(event);
+      updateGovernor(event);
+      return;
+    }
+
+    boolean isTimed = readings++ % TIMING_INTERVAL == 0;
+    long startNanos = isTimed ? System.nanoTime() : 0;
+    int gesture = engine.onAccelerometer(event.timestamp, event.values[0], event.values[1],
+        event.values[2]);
+    if (isTimed) {
+      engineNanos += System.nanoTime() - startNanos;
+      engineTimings++;
+    }
+    updateGovernor(event);
+    float xyMeanSquared = analyzer.getXYMeanSquared();
+    float xzMeanSquared = analyzer.getXZMeanSquared();
+
+    DebugTrace.record(DebugTrace.SENSOR_MEANS, 0, 0, xyMeanSquared, xzMeanSquared, 0);
+
+    // Notify the appropriate listener.
+    if (gesture != Gesture.NONE) {
+      detectedNanos[gesture] = System.nanoTime();
+      recordSensorLatency(event.timestamp);
+      DebugTrace.record(DebugTrace.GESTURE, gesture, 0, xyMeanSquared, xzMeanSquared, 0);
+      post(gestureCallbacks[gesture]);
+    }
+  }
+
+  /**
+   * Called on the sensor thread before each reading is processed. Returns
+   * whether it should be, and resets the engine first if the detector has
+   * been started since the last reading.
+   */
+  private synchronized boolean beginReading() {
+    if (!isSensing) {
+      return false;
+    }
+    if (isResetPending) {
+      isResetPending = false;
+      engine.reset();
+    }
+    return true;
+  }
+
+  /**
+   * Post a gesture callback to the listener thread, unless the detector has
+   * been stopped or restarted while the reading that completed it was being
+   * processed.
+   */
+  private synchronized void post(Runnable callback) {
+    if (isSensing && !isResetPending) {
+      listenerHandler.post(callback);
+    }
+  }
+
+  /**
+   * Count a reading that skipped the gesture engine because the phone is
+   * pocketed, and whether it would have completed a shake.
+   */
+  private void suppress(SensorEvent event) {
+    boolean isTimed = suppressedReadings++ % TIMING_INTERVAL == 0;
+    long startNanos = isTimed ? System.nanoTime() : 0;
+    int shake = pocketAnalyzer.onSample(event.timestamp, event.values[0], event.values[1],
+        event.values[2]);
+    if (isTimed) {
+      pocketNanos += System.nanoTime() - startNanos;
+      pocketTimings++;
+    }
+    if (shake != ShakeAnalyzer.NO_SHAKE) {
+      avoidedShakes++;
+    }
   }
 
-  private void clearHistory() {
-    previousXYSensorValues.clear();
-    previousXZSensorValues.clear();
+  /**
+   * Print the sensor time spent at each sampling rate, and what pocket
+   * suppression has saved: the readings that skipped the gesture engine, the
+   * CPU time that saved, estimated from the sampled timings, and the shakes
+   * that would have been detected in the pocket.
+   */
+  public void dump(PrintWriter writer) {
+    writer.println("Sampling: " + getNanosAtRate(SamplingGovernor.LOW_RATE) / 1000000 + " ms at "
+        + 1000000 / SAMPLING_PERIOD_US[SamplingGovernor.LOW_RATE] + " Hz, "
+        + getNanosAtRate(SamplingGovernor.HIGH_RATE) / 1000000 + " ms at "
+        + 1000000 / SAMPLING_PERIOD_US[SamplingGovernor.HIGH_RATE] + " Hz");
+    long suppressed = suppressedReadings;
+    long engineMean = engineTimings == 0 ? 0 : engineNanos / engineTimings;
+    long pocketMean = pocketTimings == 0 ? 0 : pocketNanos / pocketTimings;
+    long savedMicros = suppressed * Math.max(0, engineMean - pocketMean) / 1000;
+    writer.println("Pocket: suppressed " + suppressed + " readings in " + pocketings
+        + " pocketings, about " + savedMicros + " us of CPU saved, " + avoidedShakes
+        + " false shakes avoided");
+    writer.println("  engine " + engineMean + " ns/reading, suppressed " + pocketMean
+        + " ns/reading");
+  }
+
+  /**
+   * Record how long ago the reading that completed a gesture was taken.
+   * Sensor timestamps are only comparable with elapsedRealtimeNanos() on Jelly
+   * Bean MR1 and later, and even then some older sensor HALs use another
+   * clock, so implausible latencies are dropped.
+   */
+  private static void recordSensorLatency(long timestampNanos) {
+    if (Build.VERSION.SDK_INT < 17) {
+      return;
+    }
+    long latencyNanos = SystemClock.elapsedRealtimeNanos() - timestampNanos;
+    if (latencyNanos < MAX_SENSOR_LATENCY_NANOS) {
+      GestureLatency.SENSOR_TO_DETECTION.record(latencyNanos);
+    }
   }
 
-  private static float mean(List<Float> list) {
-    float sum = 0;
-    for (float item : list) {
-      sum += item;
+  /**
+   * Called on the listener thread before a gesture is passed to the listener.
+   * Returns whether it should be.
+   */
+  private boolean deliver(int gesture) {
+    if (!isStarted) {
+      return false;
     }
-    return sum / list.size();
+    gestureNanos = detectedNanos[gesture];
+    GestureLatency.DETECTION_TO_LISTENER.record(System.nanoTime() - gestureNanos);
+    return true;
+  }
+
+  /**
+   * Returns when the gesture being passed to the listener was detected, by
+   * System.nanoTime(). Only valid on the listener thread.
+   */
+  public long getGestureNanos() {
+    return gestureNanos;
+  }
+
+  /**
+   * Start recording sensor readings to a trace file, replacing any trace that
+   * is already being recorded.
+   */
+  public void startTrace(File traceFile) throws IOException {
+    stopTrace();
+    traceRecorder = new SensorTraceRecorder(traceFile);
   }
 
-  private static float sqr(float x) {
-    return x * x;
+  /**
+   * Stop recording sensor readings.
+   */
+  public void stopTrace() {
+    SensorTraceRecorder recorder = traceRecorder;
+    traceRecorder = null;
+    if (recorder != null) {
+      try {
+        recorder.close();
+      } catch (IOException e) {
+        Log.e(LOG_PREFIX, "Couldn't close sensor trace.", e);
+      }
+    }
   }
 }
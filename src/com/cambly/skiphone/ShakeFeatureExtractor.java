@@ -0,0 +1,206 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Extracts the features used by {@link TreeShakeClassifier} from a stream of
+ * accelerometer readings. Readings are accumulated in fixed point into half
+ * second blocks. Whenever a block completes, the features of the last two
+ * blocks (one second, overlapping the previous window by half) are available
+ * from {@link #getFeatures}:
+ * <ul>
+ * <li>XY_ENERGY, XZ_ENERGY: mean squared reading in each plane, x16.</li>
+ * <li>Y_CROSSINGS, Z_CROSSINGS: how often the reading crosses its slowly
+ * moving average, i.e. how much the phone oscillates along each axis.</li>
+ * <li>PEAK_RATIO: peak XY energy over peak XZ energy, x256.</li>
+ * </ul>
+ * 
+ * The work per reading is a few integer operations and nothing is allocated.
+ * This class is not thread safe.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ShakeFeatureExtractor {
+  public static final int XY_ENERGY = 0;
+  public static final int XZ_ENERGY = 1;
+  public static final int Y_CROSSINGS = 2;
+  public static final int Z_CROSSINGS = 3;
+  public static final int PEAK_RATIO = 4;
+  public static final int FEATURE_COUNT = 5;
+
+  /* The length of a block in ns. Features cover two blocks. */
+  private static final long BLOCK_NANOS = 500L * 1000 * 1000;
+
+  /* Fixed point scale for readings (4 fractional bits). */
+  private static final int SCALE_BITS = 4;
+
+  /* How far a reading must be from its average to count as a side, x16. */
+  private static final int DEAD_ZONE = 1 << SCALE_BITS;
+
+  /* Smoothing of the moving average, as a shift. */
+  private static final int AVERAGE_SHIFT = 3;
+
+  /* Accumulators for the current and previous blocks, indexed by block. */
+  private final long[] xySum = new long[2];
+  private final long[] xzSum = new long[2];
+  private final int[] count = new int[2];
+  private final int[] yCrossings = new int[2];
+  private final int[] zCrossings = new int[2];
+  private final int[] xyPeak = new int[2];
+  private final int[] xzPeak = new int[2];
+
+  /* Index of the current block. */
+  private int current = 0;
+
+  /* Whether the previous block holds readings. */
+  private boolean hasPrevious = false;
+
+  /* When the current block ends, or started is false before the first one. */
+  private long blockEndNanos;
+  private boolean started = false;
+
+  /* Moving averages of Y and Z, and which side of them the readings are on. */
+  private int yAverage;
+  private int zAverage;
+  private int ySide;
+  private int zSide;
+
+  private final int[] features = new int[FEATURE_COUNT];
+
+  /**
+   * Process one accelerometer reading.
+   * 
+   * @return true if a block completed and new features are available
+   */
+  public boolean onSample(long timestampNanos, float x, float y, float z) {
+    int fx = (int) (x * (1 << SCALE_BITS));
+    int fy = (int) (y * (1 << SCALE_BITS));
+    int fz = (int) (z * (1 << SCALE_BITS));
+
+    boolean completed = false;
+    if (!started) {
+      started = true;
+      blockEndNanos = timestampNanos + BLOCK_NANOS;
+      yAverage = fy;
+      zAverage = fz;
+    } else if (timestampNanos >= blockEndNanos) {
+      computeFeatures();
+      completed = true;
+      // Only keep the block if it was just before this one.
+      hasPrevious = timestampNanos < blockEndNanos + BLOCK_NANOS;
+      blockEndNanos = timestampNanos + BLOCK_NANOS;
+      current ^= 1;
+      clearBlock(current);
+    }
+
+    // Squares are kept with SCALE_BITS fractional bits.
+    int squaredX = (fx * fx) >> SCALE_BITS;
+    int xy = squaredX + ((fy * fy) >> SCALE_BITS);
+    int xz = squaredX + ((fz * fz) >> SCALE_BITS);
+    xySum[current] += xy;
+    xzSum[current] += xz;
+    count[current]++;
+    if (xy > xyPeak[current]) {
+      xyPeak[current] = xy;
+    }
+    if (xz > xzPeak[current]) {
+      xzPeak[current] = xz;
+    }
+
+    yAverage += (fy - yAverage) >> AVERAGE_SHIFT;
+    zAverage += (fz - zAverage) >> AVERAGE_SHIFT;
+    int newYSide = side(fy - yAverage);
+    if (newYSide != 0) {
+      if (newYSide == -ySide) {
+        yCrossings[current]++;
+      }
+      ySide = newYSide;
+    }
+    int newZSide = side(fz - zAverage);
+    if (newZSide != 0) {
+      if (newZSide == -zSide) {
+        zCrossings[current]++;
+      }
+      zSide = newZSide;
+    }
+    return completed;
+  }
+
+  /**
+   * Returns the features of the last two completed blocks. The array is
+   * reused.
+   */
+  public int[] getFeatures() {
+    return features;
+  }
+
+  /**
+   * Forget all previous readings.
+   */
+  public void reset() {
+    clearBlock(0);
+    clearBlock(1);
+    current = 0;
+    hasPrevious = false;
+    started = false;
+    ySide = 0;
+    zSide = 0;
+  }
+
+  private void computeFeatures() {
+    int previous = current ^ 1;
+    long xy = xySum[current];
+    long xz = xzSum[current];
+    int n = count[current];
+    int yCross = yCrossings[current];
+    int zCross = zCrossings[current];
+    int xyMax = xyPeak[current];
+    int xzMax = xzPeak[current];
+    if (hasPrevious) {
+      xy += xySum[previous];
+      xz += xzSum[previous];
+      n += count[previous];
+      yCross += yCrossings[previous];
+      zCross += zCrossings[previous];
+      xyMax = Math.max(xyMax, xyPeak[previous]);
+      xzMax = Math.max(xzMax, xzPeak[previous]);
+    }
+    features[XY_ENERGY] = (int) (xy / n);
+    features[XZ_ENERGY] = (int) (xz / n);
+    features[Y_CROSSINGS] = yCross;
+    features[Z_CROSSINGS] = zCross;
+    features[PEAK_RATIO] = (int) (((long) xyMax << 8) / Math.max(1, xzMax));
+  }
+
+  private void clearBlock(int block) {
+    xySum[block] = 0;
+    xzSum[block] = 0;
+    count[block] = 0;
+    yCrossings[block] = 0;
+    zCrossings[block] = 0;
+    xyPeak[block] = 0;
+    xzPeak[block] = 0;
+  }
+
+  private static int side(int offset) {
+    if (offset > DEAD_ZONE) {
+      return 1;
+    } else if (offset < -DEAD_ZONE) {
+      return -1;
+    }
+    return 0;
+  }
+}
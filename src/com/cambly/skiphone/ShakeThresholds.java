@@ -0,0 +1,49 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * An immutable snapshot of the squared readings that trigger shakes. A new
+ * snapshot is swapped in when the thresholds change, so the sensor thread
+ * only ever does a single field read to get a consistent pair.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public final class ShakeThresholds {
+  /* The thresholds used before any calibration. */
+  public static final ShakeThresholds DEFAULT = new ShakeThresholds(200.0f, 200.0f);
+
+  /* Minimum squared sensor values to trigger shake events. */
+  public final float vertical;
+  public final float horizontal;
+
+  public ShakeThresholds(float vertical, float horizontal) {
+    this.vertical = vertical;
+    this.horizontal = horizontal;
+  }
+
+  /**
+   * Returns the lower of the two thresholds.
+   */
+  public float min() {
+    return Math.min(vertical, horizontal);
+  }
+
+  @Override
+  public String toString() {
+    return "v=" + vertical + ", h=" + horizontal;
+  }
+}
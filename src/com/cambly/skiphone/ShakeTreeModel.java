@@ -0,0 +1,127 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A small decision tree over the integer features from
+ * {@link ShakeFeatureExtractor}. The tree is stored as flat arrays, so
+ * classifying is a short loop of integer comparisons.
+ * 
+ * The model file is big endian: the magic "SKDT", a version, the node count
+ * and then for each node the feature index (-1 for a leaf), the threshold (the
+ * {@link Gesture} for a leaf) and the indexes of the two children. Readings
+ * with a feature at or below the threshold go to the first child. The tree
+ * only decides shakes, so a leaf must be a vertical or horizontal shake or
+ * none.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class ShakeTreeModel {
+  private static final int MAGIC = 0x534b4454;
+  private static final int VERSION = 1;
+
+  /* Nodes, indexed by node. The root is node 0. */
+  private final byte[] feature;
+  private final int[] threshold;
+  private final short[] below;
+  private final short[] above;
+
+  public ShakeTreeModel(byte[] feature, int[] threshold, short[] below, short[] above) {
+    this.feature = feature;
+    this.threshold = threshold;
+    this.below = below;
+    this.above = above;
+  }
+
+  /**
+   * Returns the gesture for the given features.
+   */
+  public int classify(int[] features) {
+    int node = 0;
+    while (feature[node] >= 0) {
+      node = features[feature[node]] <= threshold[node] ? below[node] : above[node];
+    }
+    return threshold[node];
+  }
+
+  public int getNodeCount() {
+    return feature.length;
+  }
+
+  /**
+   * Read a model. The stream is not closed.
+   */
+  public static ShakeTreeModel read(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(in);
+    if (data.readInt() != MAGIC || data.readInt() != VERSION) {
+      throw new IOException("Not a shake model.");
+    }
+    int nodes = data.readInt();
+    if (nodes <= 0 || nodes > Short.MAX_VALUE) {
+      throw new IOException("Bad node count: " + nodes);
+    }
+    byte[] feature = new byte[nodes];
+    int[] threshold = new int[nodes];
+    short[] below = new short[nodes];
+    short[] above = new short[nodes];
+    for (int i = 0; i < nodes; i++) {
+      feature[i] = data.readByte();
+      threshold[i] = data.readInt();
+      below[i] = data.readShort();
+      above[i] = data.readShort();
+      // Check the tree up front so classify() can't go out of bounds.
+      if (feature[i] >= ShakeFeatureExtractor.FEATURE_COUNT
+          || (feature[i] >= 0 && (below[i] <= i || below[i] >= nodes || above[i] <= i
+              || above[i] >= nodes))
+          || (feature[i] < 0 && !isShakeDecision(threshold[i]))) {
+        throw new IOException("Bad node: " + i);
+      }
+    }
+    return new ShakeTreeModel(feature, threshold, below, above);
+  }
+
+  /**
+   * Returns whether a gesture can be a leaf. The other gestures have their
+   * own recognizers.
+   */
+  private static boolean isShakeDecision(int gesture) {
+    return gesture == Gesture.NONE || gesture == Gesture.VERTICAL_SHAKE
+        || gesture == Gesture.HORIZONTAL_SHAKE;
+  }
+
+  /**
+   * Write the model. The stream is not closed.
+   */
+  public void write(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(out);
+    data.writeInt(MAGIC);
+    data.writeInt(VERSION);
+    data.writeInt(feature.length);
+    for (int i = 0; i < feature.length; i++) {
+      data.writeByte(feature[i]);
+      data.writeInt(threshold[i]);
+      data.writeShort(below[i]);
+      data.writeShort(above[i]);
+    }
+    data.flush();
+  }
+}
@@ -0,0 +1,184 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Scores how sharp NV21 frames are by the variance of the Laplacian of their
+ * luma plane. A blurred frame has weak edges, so its Laplacian is flat and the
+ * variance is low. Only depends on the JDK, so it can be benchmarked without
+ * a device.
+ * 
+ * The luma plane is the first width * height bytes of an NV21 frame, so
+ * frames are scored in place without converting them. Each frame is split
+ * into bands of rows that are scored in parallel on a pool of threads, one
+ * per core, and the bands' sums are combined.
+ * 
+ * Scoring is synchronized, so a scorer can be shared but scores one set of
+ * frames at a time.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class SharpnessScorer {
+  /* Bands per frame per thread, so a slow band doesn't hold up the rest. */
+  private static final int BANDS_PER_THREAD = 2;
+
+  private final ExecutorService executor;
+
+  /* The bands of each frame. A frame's bands are bandsPerFrame consecutive entries. */
+  private final int bandsPerFrame;
+  private final Band[] bands;
+
+  /**
+   * @param threads the number of threads to score with
+   * @param maxFrames the most frames that will be scored at once
+   */
+  public SharpnessScorer(int threads, int maxFrames) {
+    executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      private int count = 0;
+
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "SharpnessScorer-" + count++);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    bandsPerFrame = threads * BANDS_PER_THREAD;
+    bands = new Band[maxFrames * bandsPerFrame];
+    for (int i = 0; i < bands.length; i++) {
+      bands[i] = new Band();
+    }
+  }
+
+  /**
+   * Returns the sharpness of one frame.
+   */
+  public float score(byte[] frame, int width, int height) {
+    float[] scores = new float[1];
+    score(new byte[][] { frame }, 1, width, height, scores);
+    return scores[0];
+  }
+
+  /**
+   * Score frames. Higher is sharper.
+   * 
+   * @param frames NV21 frames, or just their luma planes
+   * @param count the number of frames to score from the start of frames
+   * @param scores set to the score of each frame
+   */
+  public synchronized void score(byte[][] frames, int count, int width, int height,
+      float[] scores) {
+    if (count * bandsPerFrame > bands.length) {
+      throw new IllegalArgumentException("Too many frames: " + count);
+    }
+    // Only the interior has all four neighbours.
+    int rows = height - 2;
+    List<Band> tasks = new ArrayList<Band>(count * bandsPerFrame);
+    for (int f = 0; f < count; f++) {
+      for (int b = 0; b < bandsPerFrame; b++) {
+        Band band = bands[f * bandsPerFrame + b];
+        band.frame = frames[f];
+        band.width = width;
+        band.startRow = 1 + (int) ((long) rows * b / bandsPerFrame);
+        band.endRow = 1 + (int) ((long) rows * (b + 1) / bandsPerFrame);
+        band.sum = 0;
+        band.sumOfSquares = 0;
+        tasks.add(band);
+      }
+    }
+
+    try {
+      executor.invokeAll(tasks);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    for (int f = 0; f < count; f++) {
+      long sum = 0;
+      long sumOfSquares = 0;
+      for (int b = 0; b < bandsPerFrame; b++) {
+        Band band = bands[f * bandsPerFrame + b];
+        sum += band.sum;
+        sumOfSquares += band.sumOfSquares;
+        band.frame = null;
+      }
+      long pixels = (long) Math.max(rows, 0) * Math.max(width - 2, 0);
+      if (pixels == 0) {
+        scores[f] = 0;
+      } else {
+        double mean = (double) sum / pixels;
+        scores[f] = (float) ((double) sumOfSquares / pixels - mean * mean);
+      }
+    }
+  }
+
+  /**
+   * Returns the index of the sharpest of the scored frames.
+   */
+  public static int sharpest(float[] scores, int count) {
+    int best = 0;
+    for (int i = 1; i < count; i++) {
+      if (scores[i] > scores[best]) {
+        best = i;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Sums the Laplacian of a band of rows of the luma plane, and its square.
+   */
+  private static class Band implements Callable<Object> {
+    byte[] frame;
+    int width;
+    int startRow;
+    int endRow;
+    long sum;
+    long sumOfSquares;
+
+    public Object call() {
+      byte[] frame = this.frame;
+      int width = this.width;
+      long sum = 0;
+      long sumOfSquares = 0;
+      for (int y = startRow; y < endRow; y++) {
+        int row = y * width;
+        int end = row + width - 1;
+        // Slide along the row so each pixel in it is only loaded once.
+        int left = frame[row] & 0xff;
+        int center = frame[row + 1] & 0xff;
+        for (int i = row + 1; i < end; i++) {
+          int right = frame[i + 1] & 0xff;
+          int laplacian = 4 * center - left - right - (frame[i - width] & 0xff)
+              - (frame[i + width] & 0xff);
+          sum += laplacian;
+          sumOfSquares += laplacian * laplacian;
+          left = center;
+          center = right;
+        }
+      }
+      this.sum = sum;
+      this.sumOfSquares = sumOfSquares;
+      return null;
+    }
+  }
+}
@@ -17,7 +17,6 @@ package com.cambly.skiphone;
 
 import android.app.Activity;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.net.Uri;
 import android.os.Bundle;
@@ -36,48 +35,98 @@ import android.widget.Toast;
  * 
  * @author kevin@intercambly.com (Kevin Law)
  */
-public class SkiPhone extends Activity {
+public class SkiPhone extends Activity implements StateStore.Listener {
   /* Shared preferences filename. */
   public final static String PREF_FILENAME = "com.cambly.skiphone";
 
   /* Preference key to see whether SkiPhone is enabled. */
   public final static String IS_ENABLED_PREF = "is_enabled";
 
+  /* Preference key for the learned shake thresholds. */
+  public final static String CALIBRATION_PREF = "calibration";
+
+  /*
+   * When the screen turned on, by System.nanoTime(), if the activity was
+   * opened for it.
+   */
+  public final static String SCREEN_ON_NANOS_EXTRA = "screen_on_nanos";
+
+  /* Preference key for the gesture to action mapping. See ActionTable. */
+  public final static String ACTIONS_PREF = "actions";
+
   /* Whether SkiPhone is enabled. */
   private boolean isEnabled;
 
   /* The button that enables/disables SkiPhone. */
   private Button toggleButton;
 
+  /* Records the time from the screen turning on to the activity being drawn. */
+  private DrawLatency drawLatency;
+
   /* The button to rate the app. */
   private Button rateButton;
 
   /* The button to send feedback. */
   private Button feedbackButton;
 
-  private SharedPreferences prefs;
+  /* The app state. */
+  private StateStore state;
 
   @Override
   public void onCreate(Bundle savedInstanceState) {
     super.onCreate(savedInstanceState);
-    prefs = getSharedPreferences(PREF_FILENAME, MODE_PRIVATE);    
+    state = StateStore.get(this);
     setContentView(R.layout.main);
+    toggleButton = (Button) findViewById(R.id.toggle_button);
+    drawLatency = new DrawLatency(toggleButton, GestureLatency.SCREEN_ON_TO_ACTIVITY);
+    rateButton = (Button) findViewById(R.id.rate_button);
+    feedbackButton = (Button) findViewById(R.id.feedback_button);
   }
 
   @Override
   public void onResume() {
     super.onResume();
     
-    // Set the button states.
-    isEnabled = prefs.getBoolean(IS_ENABLED_PREF, false);
-    toggleButton = (Button) findViewById(R.id.toggle_button);
+    // Set the button states, and keep them up to date while we're showing.
+    isEnabled = state.isEnabled();
+    updateButtons();
+    state.addListener(this);
+
+    // Trace how long it took to draw after the screen turned on.
+    long screenOnNanos = getIntent().getLongExtra(SCREEN_ON_NANOS_EXTRA, 0);
+    if (screenOnNanos != 0) {
+      getIntent().removeExtra(SCREEN_ON_NANOS_EXTRA);
+      drawLatency.recordNextDraw(screenOnNanos);
+    }
+  }
+
+  @Override
+  protected void onPause() {
+    super.onPause();
+    state.removeListener(this);
+  }
+
+  public void onStateChanged(int key) {
+    if (key == StateStore.ENABLED) {
+      isEnabled = state.isEnabled();
+      updateButtons();
+    }
+  }
+
+  private void updateButtons() {
     toggleButton.setText(isEnabled ? R.string.disable_button : R.string.enable_button);
-    rateButton = (Button) findViewById(R.id.rate_button);
+
+    // The rating and feedback buttons should only be clickable if SkiPhone is disabled.
     rateButton.setVisibility(isEnabled ? View.INVISIBLE : View.VISIBLE);
-    feedbackButton = (Button) findViewById(R.id.feedback_button);
     feedbackButton.setVisibility(isEnabled ? View.INVISIBLE : View.VISIBLE);
   }
 
+  @Override
+  protected void onNewIntent(Intent intent) {
+    super.onNewIntent(intent);
+    setIntent(intent);
+  }
+
   /**
    * Use volume buttons to simulate shakes.
    */
@@ -121,19 +170,9 @@ public class SkiPhone extends Activity {
     // The user pressed the button, so the screen must be on.
     serviceIntent.putExtra(SkiPhoneService.IS_SCREEN_ON_EXTRA, true);
 
-    if (!isEnabled) {
-      // Turn SkiPhone on.
-      toggleButton.setText(R.string.disable_button);
-      isEnabled = true;
-    } else {
-      // Turn SkiPhone off.
-      toggleButton.setText(R.string.enable_button);
-      isEnabled = false;
-    }
-
-    // The rating and feedback buttons should only be clickable if SkiPhone is disabled.
-    rateButton.setVisibility(isEnabled ? View.INVISIBLE : View.VISIBLE);
-    feedbackButton.setVisibility(isEnabled ? View.INVISIBLE : View.VISIBLE);
+    // Turn SkiPhone on or off.
+    isEnabled = !isEnabled;
+    updateButtons();
 
     // Update the service with the current settings.
     serviceIntent.putExtra(SkiPhoneService.IS_ENABLED_EXTRA, isEnabled);
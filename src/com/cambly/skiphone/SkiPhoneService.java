@@ -15,6 +15,12 @@
  */
 package com.cambly.skiphone;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+
 import com.cambly.skiphone.ShakeDetector.ShakeListener;
 
 import android.app.KeyguardManager;
@@ -22,16 +28,18 @@ import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.ActivityNotFoundException;
 import android.app.KeyguardManager.KeyguardLock;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.SharedPreferences;
+import android.os.Build;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.Vibrator;
 import android.telephony.TelephonyManager;
 import android.util.Log;
-import android.view.KeyEvent;
+import android.view.View;
 import android.widget.Toast;
 
 /**
@@ -40,33 +48,107 @@ import android.widget.Toast;
  * 
  * @author kevin@intercambly.com (Kevin Law)
  */
-public class SkiPhoneService extends Service implements ShakeListener {
+public class SkiPhoneService extends Service implements ShakeListener, ScreenDebouncer.Listener {
   /* Extras used in intents sent to the service. */
   public static final String IS_SCREEN_ON_EXTRA = "screen_on";
   public static final String IS_ENABLED_EXTRA = "is_enabled";
 
+  /*
+   * Path of a file to record accelerometer readings to, or an empty string to
+   * stop recording. For collecting traces during development, e.g.
+   * adb shell am startservice -n com.cambly.skiphone/.SkiPhoneService
+   *     --es trace_file /sdcard/run.trace
+   */
+  public static final String TRACE_FILE_EXTRA = "trace_file";
+
+  /*
+   * A new gesture to action mapping, see ActionTable. Mappings that
+   * can't be parsed are logged and ignored. E.g.
+   * adb shell am startservice -n com.cambly.skiphone/.SkiPhoneService
+   *     --es actions 'double_shake:idle:*=camera'
+   */
+  public static final String ACTIONS_EXTRA = "actions";
+
   private static final String LOG_PREFIX = "SkiPhoneService";
 
+  /* Asset holding a trained shake model. Thresholds are used without one. */
+  private static final String SHAKE_MODEL_ASSET = "shake_model.bin";
+
+  /* Disarm the shake detector after the phone has been still this long. */
+  private static final long IDLE_TIMEOUT_MILLIS = 30000;
+
   /* Used to detect shake gestures. */
   private ShakeDetector shakeDetector;
 
-  /* Used to detect incoming calls. */
-  private TelephonyManager telephonyManager;
+  /* Turns the shake detector off while the phone isn't moving. */
+  private MotionGate motionGate;
+
+  /* Tracks the call state, to detect incoming calls. */
+  private CallStateCache callState;
+
+  /* Answers and hangs up calls. */
+  private CallDispatcher callDispatcher;
+
+  /* Arms the shake detector for incoming calls, even if the phone is still. */
+  private final CallStateSource.Listener callStateListener = new CallStateSource.Listener() {
+    public void onCallStateChanged(int callState) {
+      if (callState == TelephonyManager.CALL_STATE_RINGING) {
+        motionGate.wake();
+      }
+    }
+  };
+
+  /* What to do for each gesture. Replaced when the mapping changes. */
+  private volatile ActionTable actionTable;
+
+  /* Whether the screen is on. */
+  private boolean isScreenOn = false;
+
+  /*
+   * Set while a screen change sent by the SkiPhone activity is passed to the
+   * debouncer. The activity is already in front then, so neither it nor the
+   * status overlay is shown for it.
+   */
+  private boolean isActivityScreenChange = false;
+
+  /* Recompiles the action table when the mapping changes. */
+  private final StateStore.Listener stateListener = new StateStore.Listener() {
+    public void onStateChanged(int key) {
+      if (key == StateStore.ACTIONS) {
+        loadActionTable();
+      }
+    }
+  };
 
   /* Used to show a status bar icon. */
   private NotificationManager notificationManager;
 
+  /* Handles screen changes on the main thread. */
+  private Handler handler;
+
+  /* Collapses bursts of screen changes. */
+  private ScreenDebouncer screenDebouncer;
+
   /* Notifies the SkiPhone service when the screen turns on and off. */
   private ScreenReceiver screenReceiver;
 
+  /* Shown when the screen turns on. */
+  private StatusOverlay statusOverlay;
+
+  /*
+   * Whether to show the overlay rather than the SkiPhone activity when the
+   * screen turns on. Can be turned off through dumpsys to compare the two.
+   */
+  private volatile boolean isOverlayEnabled = true;
+
   /* A filter to look for screen on/off intents. */
   private IntentFilter screenIntentFilter;
 
   /* Used to disable the keyguard when SkiPhone is enabled. */
   private KeyguardLock keyguardLock;
 
-  /* Preferences for storing the app state. */
-  private SharedPreferences prefs;
+  /* The app state. */
+  private StateStore state;
 
   /* Vibrates the phone to provide haptic feedback. */
   private Vibrator vibrator;
@@ -74,26 +156,49 @@ public class SkiPhoneService extends Service implements ShakeListener {
   @Override
   public void onCreate() {
     // Get system services.
-    telephonyManager = (TelephonyManager) getSystemService(TELEPHONY_SERVICE);
+    callState = new CallStateCache(new TelephonyCallStateSource(
+        (TelephonyManager) getSystemService(TELEPHONY_SERVICE)));
+    callState.start();
+    callDispatcher = new CallDispatcher(this);
     notificationManager = (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
     keyguardLock = ((KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE))
         .newKeyguardLock("SkiPhone");
     vibrator = (Vibrator) getSystemService(VIBRATOR_SERVICE);
 
-    shakeDetector = new ShakeDetector(this, this);
-
-    screenReceiver = new ScreenReceiver();
+    state = StateStore.get(this);
+
+    // Load the calibrated thresholds once. The detector works from an
+    // in-memory snapshot after this.
+    shakeDetector = new ShakeDetector(this, this, new ShakeCalibrator(state.getCalibration()));
+    loadShakeModel();
+    loadActionTable();
+    state.addListener(stateListener);
+    motionGate = new MotionGate(this, shakeDetector, IDLE_TIMEOUT_MILLIS);
+    callState.setListener(callStateListener);
+
+    handler = new Handler();
+    screenDebouncer = new ScreenDebouncer(handler, this);
+    screenReceiver = new ScreenReceiver(screenDebouncer);
+    statusOverlay = new StatusOverlay(this, new View.OnClickListener() {
+      public void onClick(View view) {
+        statusOverlay.hide();
+        startSkiPhoneActivity(0);
+      }
+    });
 
     // TODO: Move into screen receiver.
     screenIntentFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
     screenIntentFilter.addAction(Intent.ACTION_SCREEN_OFF);
-
-    prefs = getSharedPreferences(SkiPhone.PREF_FILENAME, MODE_PRIVATE);
   }
 
   @Override
   public void onDestroy() {
+    state.removeListener(stateListener);
     disableSkiPhone();
+    callState.setListener(null);
+    callState.stop();
+    shakeDetector.stopTrace();
+    state.flush();
   }
 
   @Override
@@ -101,6 +206,47 @@ public class SkiPhoneService extends Service implements ShakeListener {
     return null;
   }
 
+  /**
+   * Print the gesture latency histograms, the detector statistics, how long
+   * the motion gate has kept the detector armed and disarmed, and the action
+   * mapping in use. The arguments can instead be "reset" to reset the
+   * histograms, "trace" to print the debug trace, "trace on" or "trace off" to
+   * turn tracing on or off, "overlay on" or "overlay off" to choose between
+   * the status overlay and the SkiPhone activity on screen on, or "actions"
+   * followed by a new gesture to action mapping. The new mapping is swapped
+   * in on the main thread, so it shows in the next dump.
+   */
+  @Override
+  protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+    String command = args != null && args.length > 0 ? args[0] : "";
+    if ("reset".equals(command)) {
+      GestureLatency.reset();
+      writer.println("Latency histograms reset.");
+    } else if ("overlay".equals(command) && args.length > 1) {
+      isOverlayEnabled = "on".equals(args[1]);
+      writer.println("Status overlay " + (isOverlayEnabled ? "on." : "off."));
+    } else if ("trace".equals(command)) {
+      if (args.length > 1) {
+        DebugTrace.setEnabled("on".equals(args[1]));
+      }
+      DebugTrace.dump(writer);
+    } else if ("actions".equals(command) && args.length > 1) {
+      StringBuilder mapping = new StringBuilder(args[1]);
+      for (int i = 2; i < args.length; i++) {
+        mapping.append(' ').append(args[i]);
+      }
+      String error = setActions(mapping.toString());
+      writer.println(error == null ? "Actions set." : "Bad mapping: " + error);
+    } else {
+      GestureLatency.dump(writer);
+      screenDebouncer.dump(writer);
+      shakeDetector.dump(writer);
+      writer.println("Motion gate: armed " + motionGate.getArmedMillis() + " ms, disarmed "
+          + motionGate.getDisarmedMillis() + " ms");
+      dumpActions(writer);
+    }
+  }
+
   /**
    * This is the old onStart method that will be called on the pre-2.0 platform.
    * On 2.0 or later we override onStartCommand() so this method will not be
@@ -123,6 +269,15 @@ public class SkiPhoneService extends Service implements ShakeListener {
     if (intent == null) {
       return;
     }
+    if (intent.hasExtra(TRACE_FILE_EXTRA)) {
+      setTraceFile(intent.getStringExtra(TRACE_FILE_EXTRA));
+    }
+    if (intent.hasExtra(ACTIONS_EXTRA)) {
+      String error = setActions(intent.getStringExtra(ACTIONS_EXTRA));
+      if (error != null) {
+        Log.e(LOG_PREFIX, "Ignoring bad action mapping: " + error);
+      }
+    }
     // Start listening for the screen to turn on and off when SkiPhone is
     // enabled.
     if (intent.hasExtra(SkiPhoneService.IS_ENABLED_EXTRA)) {
@@ -131,7 +286,7 @@ public class SkiPhoneService extends Service implements ShakeListener {
         keyguardLock.disableKeyguard();
 
         // Listen for the screen to turn on and off.
-        registerReceiver(screenReceiver, screenIntentFilter);
+        registerReceiver(screenReceiver, screenIntentFilter, null, handler);
 
         // Show a status bar notification.
         showNotification();
@@ -147,19 +302,142 @@ public class SkiPhoneService extends Service implements ShakeListener {
     // Only run the shake detector when the screen is on. The ShakeReceiver is
     // only running when SkiPhone is enabled, so receiver this intent implies
     // that SkiPhone is enabled.
+    // Only the SkiPhone activity sends this; screen broadcasts go straight to
+    // the debouncer.
     if (intent.hasExtra(SkiPhoneService.IS_SCREEN_ON_EXTRA)) {
-      if (intent.getBooleanExtra(IS_SCREEN_ON_EXTRA, false)) {
-        shakeDetector.start();
-
-        // Show the SkiPhone activity unless we're on a call.
-        if (telephonyManager.getCallState() == TelephonyManager.CALL_STATE_IDLE) {
-          Intent activityIntent = new Intent(this, SkiPhone.class);
-          activityIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-          startActivity(activityIntent);
-        }
-      } else {
-        shakeDetector.stop();
+      isActivityScreenChange = true;
+      try {
+        screenDebouncer.onScreenChanged(intent.getBooleanExtra(IS_SCREEN_ON_EXTRA, false));
+      } finally {
+        isActivityScreenChange = false;
+      }
+    }
+  }
+
+  /**
+   * Called once the screen has settled on or off.
+   */
+  public void onScreenSettled(boolean isScreenOn) {
+    long screenOnNanos = System.nanoTime();
+    this.isScreenOn = isScreenOn;
+    if (isScreenOn) {
+      motionGate.start();
+
+      // Show that SkiPhone is on unless we're on a call or it's already showing.
+      if (!isActivityScreenChange
+          && callState.getCallState() == TelephonyManager.CALL_STATE_IDLE
+          && !(isOverlayEnabled && statusOverlay.show(screenOnNanos))) {
+        startSkiPhoneActivity(screenOnNanos);
+      }
+    } else {
+      statusOverlay.hide();
+      motionGate.stop();
+      saveCalibration();
+    }
+  }
+
+  /**
+   * @param screenOnNanos when the screen turned on, or 0 if the activity isn't
+   *          being started for the screen turning on
+   */
+  private void startSkiPhoneActivity(long screenOnNanos) {
+    Intent activityIntent = new Intent(this, SkiPhone.class);
+    activityIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+    if (screenOnNanos != 0) {
+      activityIntent.putExtra(SkiPhone.SCREEN_ON_NANOS_EXTRA, screenOnNanos);
+    }
+    startActivity(activityIntent);
+  }
+
+  /**
+   * Compile the gesture to action mapping, falling back to the default one if
+   * it can't be parsed, and only detect the gestures it maps.
+   */
+  private void loadActionTable() {
+    ActionTable table;
+    try {
+      table = new ActionTable(this, state.getActions());
+    } catch (IllegalArgumentException e) {
+      Log.e(LOG_PREFIX, "Couldn't parse the action mapping.", e);
+      table = new ActionTable(this, ActionTable.DEFAULT_MAPPING);
+    }
+    actionTable = table;
+    DebugTrace.record(DebugTrace.ACTION_TABLE, table.getMappedGestures());
+    // Gestures with nothing to do aren't detected, so they can't hide the
+    // ones that have, e.g. an unmapped double shake hiding the shake that
+    // hangs up.
+    shakeDetector.setEnabledGestures(table.getMappedGestures());
+  }
+
+  /**
+   * Print the action mapping in use and the gestures it enables.
+   */
+  private void dumpActions(PrintWriter writer) {
+    ActionTable table = actionTable;
+    writer.println("Actions: " + table.getMapping());
+    StringBuilder gestures = new StringBuilder();
+    for (int gesture = Gesture.NONE + 1; gesture < Gesture.COUNT; gesture++) {
+      if ((table.getMappedGestures() & Gesture.bit(gesture)) != 0) {
+        gestures.append(gestures.length() == 0 ? "" : ", ").append(Gesture.name(gesture));
+      }
+    }
+    writer.println("  detecting " + gestures);
+  }
+
+  /**
+   * Save a new gesture to action mapping if it can be parsed. The state
+   * listener then swaps in its table. Can be called from any thread; the
+   * state is changed on the main thread.
+   * 
+   * @return null, or why the mapping couldn't be parsed
+   */
+  private String setActions(final String mapping) {
+    if (mapping == null) {
+      return "no mapping";
+    }
+    try {
+      new ActionTable(this, mapping);
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
+    }
+    handler.post(new Runnable() {
+      public void run() {
+        state.setActions(mapping);
       }
+    });
+    return null;
+  }
+
+  private void loadShakeModel() {
+    InputStream in;
+    try {
+      in = getAssets().open(SHAKE_MODEL_ASSET);
+    } catch (IOException e) {
+      DebugTrace.record(DebugTrace.NO_SHAKE_MODEL);
+      return;
+    }
+    try {
+      shakeDetector.setShakeModel(ShakeTreeModel.read(in));
+    } catch (IOException e) {
+      Log.e(LOG_PREFIX, "Couldn't load shake model.", e);
+    } finally {
+      try {
+        in.close();
+      } catch (IOException e) {
+        // Nothing to do.
+      }
+    }
+  }
+
+  private void setTraceFile(String path) {
+    if (path == null || path.length() == 0) {
+      shakeDetector.stopTrace();
+      return;
+    }
+    try {
+      shakeDetector.startTrace(new File(path));
+    } catch (IOException e) {
+      Log.e(LOG_PREFIX, "Couldn't record sensor trace to " + path, e);
     }
   }
 
@@ -182,89 +460,130 @@ public class SkiPhoneService extends Service implements ShakeListener {
 
     // If SkiPhone was disabled, then we don't care if the screen was on or
     // not. Just stop listening for shakes.
-    shakeDetector.stop();
+    screenDebouncer.reset();
+    statusOverlay.hide();
+    motionGate.stop();
+    saveCalibration();
   }
 
   private void saveEnabledState(boolean isEnabled) {
-    SharedPreferences.Editor prefsEditor = prefs.edit();
-    prefsEditor.putBoolean(SkiPhone.IS_ENABLED_PREF, isEnabled);
-    prefsEditor.commit();
+    state.setEnabled(isEnabled);
+  }
+
+  /**
+   * Apply what the calibrator has learned and save it for next time.
+   */
+  private void saveCalibration() {
+    state.setCalibration(shakeDetector.recalibrate());
   }
 
   public void onVerticalShake() {
-    Log.d(LOG_PREFIX, "Vertical shake.");
+    dispatch(Gesture.VERTICAL_SHAKE);
+  }
+
+  public void onHorizontalShake() {
+    dispatch(Gesture.HORIZONTAL_SHAKE);
+  }
+
+  public void onGesture(int gesture) {
+    dispatch(gesture);
+  }
+
+  /**
+   * Perform the action mapped to a gesture in the current state.
+   */
+  private void dispatch(int gesture) {
+    long listenerNanos = System.nanoTime();
+    DebugTrace.record(DebugTrace.SERVICE_GESTURE, gesture);
+
+    ActionTable table = actionTable;
+    int slot = ActionTable.slot(gesture, callState.getCallState(), isScreenOn);
+    int action = table.getAction(slot);
+    if (action == ActionTable.NONE) {
+      return;
+    }
 
     vibrator.vibrate(500);
 
-    switch (telephonyManager.getCallState()) {
-    case TelephonyManager.CALL_STATE_RINGING:
-      // The phone is ringing. Answer it by simulating a press on a headset
-      // button.
-      Intent buttonDown = new Intent(Intent.ACTION_MEDIA_BUTTON);
-      buttonDown.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_DOWN,
-          KeyEvent.KEYCODE_HEADSETHOOK));
-      sendOrderedBroadcast(buttonDown, "android.permission.CALL_PRIVILEGED");
-      Intent buttonUp = new Intent(Intent.ACTION_MEDIA_BUTTON);
-      buttonUp.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(KeyEvent.ACTION_UP,
-          KeyEvent.KEYCODE_HEADSETHOOK));
-      sendOrderedBroadcast(buttonUp, "android.permission.CALL_PRIVILEGED");
+    Intent intent = table.getIntent(slot);
+    switch (action) {
+    case ActionTable.ANSWER:
+      callDispatcher.answer();
       break;
-    case TelephonyManager.CALL_STATE_OFFHOOK:
-      // A call is in progress. Hang up by simulating a long press on a headset
-      // button.
-      Intent longButtonDown = new Intent(Intent.ACTION_MEDIA_BUTTON);
-      longButtonDown.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(0, 0, KeyEvent.ACTION_DOWN,
-          KeyEvent.KEYCODE_HEADSETHOOK, 0, 0, 0, 0, KeyEvent.FLAG_LONG_PRESS));
-      sendOrderedBroadcast(longButtonDown, "android.permission.CALL_PRIVILEGED");
-      Intent longButtonUp = new Intent(Intent.ACTION_MEDIA_BUTTON);
-      longButtonUp.putExtra(Intent.EXTRA_KEY_EVENT, new KeyEvent(0, 0, KeyEvent.ACTION_UP,
-          KeyEvent.KEYCODE_HEADSETHOOK, 0, 0, 0, 0, KeyEvent.FLAG_LONG_PRESS));
-      sendOrderedBroadcast(longButtonUp, "android.permission.CALL_PRIVILEGED");
+    case ActionTable.HANG_UP:
+      callDispatcher.hangUp();
       break;
-    default:
+    case ActionTable.VOICE_SEARCH:
       // Start the voice actions prompt.
-      Intent intent = new Intent(Intent.ACTION_SEARCH_LONG_PRESS);
-      intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
       startActivity(intent);
 
       // Show a toast with instructions on how to cancel.
       Toast.makeText(this, R.string.screen_cancel, Toast.LENGTH_LONG).show();
+      break;
+    case ActionTable.CAMERA:
+    case ActionTable.BURST:
+    case ActionTable.MERGE:
+    case ActionTable.INSTANT:
+      // Open the app in camera mode.
+      intent.putExtra(CameraActivity.SHAKE_NANOS_EXTRA, shakeDetector.getGestureNanos());
+      startActivity(intent);
+      break;
+    case ActionTable.CUSTOM_INTENT:
+      try {
+        startActivity(intent);
+      } catch (ActivityNotFoundException e) {
+        Log.e(LOG_PREFIX, "Nothing handles " + intent.getAction());
+      }
+      break;
     }
-  }
-
-  public void onHorizontalShake() {
-    if (telephonyManager.getCallState() != TelephonyManager.CALL_STATE_IDLE) {
-      // Don't do anything if the user is on the phone.
-      return;
-    }
-
-    vibrator.vibrate(500);
-
-    // Open the app in camera mode.
-    Intent intent = new Intent(this, CameraActivity.class);
-    intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-    startActivity(intent);
+    GestureLatency.LISTENER_TO_DISPATCH.record(System.nanoTime() - listenerNanos);
   }
 
   private void showNotification() {
     CharSequence text = getText(R.string.enabled);
 
-    // Set the icon, scrolling text and timestamp
-    Notification notification = new Notification(R.drawable.service_icon, text,
-        System.currentTimeMillis());
-    notification.flags |= Notification.FLAG_ONGOING_EVENT;
-
     // The PendingIntent to launch our activity if the user selects this
     // notification.
     PendingIntent contentIntent = PendingIntent.getActivity(this, 0, new Intent(this,
         SkiPhone.class), 0);
 
-    // Set the info for the views that show in the notification panel.
-    notification.setLatestEventInfo(this, text, getText(R.string.notification), contentIntent);
+    Notification notification;
+    if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      Notification.Builder builder = new Notification.Builder(this)
+          .setSmallIcon(R.drawable.service_icon).setTicker(text)
+          .setWhen(System.currentTimeMillis()).setOngoing(true).setContentTitle(text)
+          .setContentText(getText(R.string.notification)).setContentIntent(contentIntent);
+      notification = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN ? builder.build()
+          : builder.getNotification();
+    } else {
+      notification = buildLegacyNotification(text, contentIntent);
+    }
 
     // Send the notification.
     // We use a layout id because it is a unique number. We use it later to
     // cancel.
     notificationManager.notify(R.string.enabled, notification);
   }
+
+  /**
+   * Build the notification the way it was done before Honeycomb. The SDK we
+   * build against no longer has setLatestEventInfo, but the platforms that
+   * need this path do, so it is called reflectively.
+   */
+  private Notification buildLegacyNotification(CharSequence text, PendingIntent contentIntent) {
+    // Set the icon, scrolling text and timestamp
+    Notification notification = new Notification(R.drawable.service_icon, text,
+        System.currentTimeMillis());
+    notification.flags |= Notification.FLAG_ONGOING_EVENT;
+
+    // Set the info for the views that show in the notification panel.
+    try {
+      Notification.class.getMethod("setLatestEventInfo", Context.class, CharSequence.class,
+          CharSequence.class, PendingIntent.class).invoke(notification, this, text,
+          getText(R.string.notification), contentIntent);
+    } catch (Exception e) {
+      Log.e(LOG_PREFIX, "Couldn't set the notification info.", e);
+    }
+    return notification;
+  }
 }
@@ -0,0 +1,179 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+/**
+ * The app state shared by the activities and the service. The in-memory copy
+ * is authoritative: it is read from the preferences file once, and reads
+ * after that never touch the disk. Changes are written back on a background
+ * thread a moment later, so a burst of changes is saved with one write.
+ * 
+ * Listeners are told about changes so the UI can update without re-reading
+ * the state. Setters and listener registration must be called on the main
+ * thread, which is where listeners are called. Getters can be called from
+ * any thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class StateStore {
+  /* Keys passed to listeners. */
+  public static final int ENABLED = 0;
+  public static final int CALIBRATION = 1;
+  public static final int ACTIONS = 2;
+
+  public interface Listener {
+    public void onStateChanged(int key);
+  }
+
+  /* How long to wait for more changes before writing. */
+  private static final long WRITE_DELAY_MILLIS = 1000;
+
+  private static StateStore instance;
+
+  private final SharedPreferences prefs;
+
+  /* Writes the state on a background thread. */
+  private final Handler writeHandler;
+
+  /* Only used on the main thread. */
+  private final ArrayList<Listener> listeners = new ArrayList<Listener>();
+
+  private volatile boolean isEnabled;
+  private volatile String calibration;
+  private volatile String actions;
+
+  /* Whether a write has been posted. Synchronized on the store. */
+  private boolean isWritePending = false;
+
+  private final Runnable writeCallback = new Runnable() {
+    public void run() {
+      synchronized (StateStore.this) {
+        isWritePending = false;
+      }
+      SharedPreferences.Editor prefsEditor = prefs.edit();
+      prefsEditor.putBoolean(SkiPhone.IS_ENABLED_PREF, isEnabled);
+      prefsEditor.putString(SkiPhone.CALIBRATION_PREF, calibration);
+      prefsEditor.putString(SkiPhone.ACTIONS_PREF, actions);
+      prefsEditor.commit();
+    }
+  };
+
+  /**
+   * Returns the store, loading it the first time.
+   */
+  public static synchronized StateStore get(Context context) {
+    if (instance == null) {
+      instance = new StateStore(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  private StateStore(Context context) {
+    prefs = context.getSharedPreferences(SkiPhone.PREF_FILENAME, Context.MODE_PRIVATE);
+    isEnabled = prefs.getBoolean(SkiPhone.IS_ENABLED_PREF, false);
+    calibration = prefs.getString(SkiPhone.CALIBRATION_PREF, null);
+    actions = prefs.getString(SkiPhone.ACTIONS_PREF, ActionTable.DEFAULT_MAPPING);
+
+    HandlerThread writeThread = new HandlerThread("StateStore",
+        Process.THREAD_PRIORITY_BACKGROUND);
+    writeThread.start();
+    writeHandler = new Handler(writeThread.getLooper());
+  }
+
+  public boolean isEnabled() {
+    return isEnabled;
+  }
+
+  public void setEnabled(boolean isEnabled) {
+    if (isEnabled != this.isEnabled) {
+      this.isEnabled = isEnabled;
+      changed(ENABLED);
+    }
+  }
+
+  /**
+   * Returns the shake calibration, or null if there isn't one yet.
+   */
+  public String getCalibration() {
+    return calibration;
+  }
+
+  public void setCalibration(String calibration) {
+    if (!equal(calibration, this.calibration)) {
+      this.calibration = calibration;
+      changed(CALIBRATION);
+    }
+  }
+
+  /**
+   * Returns the gesture to action mapping. See {@link ActionTable}.
+   */
+  public String getActions() {
+    return actions;
+  }
+
+  public void setActions(String actions) {
+    if (!equal(actions, this.actions)) {
+      this.actions = actions;
+      changed(ACTIONS);
+    }
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Write any pending changes now instead of waiting.
+   */
+  public void flush() {
+    synchronized (this) {
+      if (!isWritePending) {
+        return;
+      }
+    }
+    writeHandler.removeCallbacks(writeCallback);
+    writeHandler.post(writeCallback);
+  }
+
+  private void changed(int key) {
+    synchronized (this) {
+      if (!isWritePending) {
+        isWritePending = true;
+        writeHandler.postDelayed(writeCallback, WRITE_DELAY_MILLIS);
+      }
+    }
+    for (int i = 0; i < listeners.size(); i++) {
+      listeners.get(i).onStateChanged(key);
+    }
+  }
+
+  private static boolean equal(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+}
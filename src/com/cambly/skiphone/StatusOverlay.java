@@ -0,0 +1,105 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.content.Context;
+import android.graphics.PixelFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Gravity;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.WindowManager;
+
+/**
+ * A small banner shown over the lock screen when the screen turns on, saying
+ * SkiPhone is on. It replaces launching the SkiPhone activity on every screen
+ * on, which inflated the whole main layout and read the preferences each
+ * time. The banner is inflated once and then just added to and removed from
+ * the window manager.
+ * 
+ * Must be used on the main thread.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class StatusOverlay {
+  private static final String LOG_PREFIX = "StatusOverlay";
+
+  /* How long the banner stays up. */
+  private static final long SHOW_MILLIS = 10000;
+
+  private final WindowManager windowManager;
+  private final View view;
+  private final WindowManager.LayoutParams params;
+  private final Handler handler = new Handler();
+
+  private boolean isShown = false;
+
+  /* Records the time from the screen turning on to the banner being drawn. */
+  private final DrawLatency drawLatency;
+
+  private final Runnable hideCallback = new Runnable() {
+    public void run() {
+      hide();
+    }
+  };
+
+  public StatusOverlay(Context context, View.OnClickListener clickListener) {
+    windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+    view = LayoutInflater.from(context).inflate(R.layout.status_overlay, null);
+    view.setOnClickListener(clickListener);
+    drawLatency = new DrawLatency(view, GestureLatency.SCREEN_ON_TO_OVERLAY);
+    params = new WindowManager.LayoutParams(ViewGroup.LayoutParams.FILL_PARENT,
+        ViewGroup.LayoutParams.WRAP_CONTENT,
+        Build.VERSION.SDK_INT >= 26 ? WindowManager.LayoutParams.TYPE_APPLICATION_OVERLAY
+            : WindowManager.LayoutParams.TYPE_SYSTEM_ALERT,
+        WindowManager.LayoutParams.FLAG_NOT_FOCUSABLE
+            | WindowManager.LayoutParams.FLAG_SHOW_WHEN_LOCKED, PixelFormat.TRANSLUCENT);
+    params.gravity = Gravity.TOP;
+  }
+
+  /**
+   * Show the banner for a few seconds. Returns false if the window manager wouldn't show it.
+   * 
+   * @param screenOnNanos when the screen turned on, by System.nanoTime()
+   */
+  public boolean show(long screenOnNanos) {
+    if (isShown) {
+      return true;
+    }
+    try {
+      windowManager.addView(view, params);
+    } catch (RuntimeException e) {
+      // Not allowed to draw over other apps.
+      Log.e(LOG_PREFIX, "Couldn't show status overlay.", e);
+      return false;
+    }
+    isShown = true;
+    drawLatency.recordNextDraw(screenOnNanos);
+    handler.postDelayed(hideCallback, SHOW_MILLIS);
+    return true;
+  }
+
+  public void hide() {
+    handler.removeCallbacks(hideCallback);
+    if (isShown) {
+      windowManager.removeView(view);
+      isShown = false;
+    }
+  }
+}
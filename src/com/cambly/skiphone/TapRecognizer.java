@@ -0,0 +1,73 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Recognizes a tap on the front or back of the phone: a jolt along the Z axis
+ * that immediately bounces back, without much movement along the other axes.
+ * Taps are very short, so they are only picked up reliably at the high
+ * sampling rate.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class TapRecognizer extends GestureRecognizer {
+  /*
+   * The range of changes in Z between readings that make a tap, in m/s^2.
+   * Anything bigger is a flick.
+   */
+  private static final float MIN_JOLT = 5.0f;
+  private static final float MAX_JOLT = 15.0f;
+
+  /* The largest change along X or Y allowed during a tap, in m/s^2. */
+  private static final float MAX_SIDEWAYS = 2.0f;
+
+  /* The minimum time between taps, in ns. */
+  private static final long REFRACTORY_NANOS = 500L * 1000 * 1000;
+
+  /* Direction of the jolt in the previous reading, or 0 if there wasn't one. */
+  private int joltDirection = 0;
+
+  private long lastTapNanos = 0;
+  private boolean hasTapped = false;
+
+  @Override
+  public int onFeatures(MotionFeatures features) {
+    boolean isSideways = Math.abs(features.dx) > MAX_SIDEWAYS
+        || Math.abs(features.dy) > MAX_SIDEWAYS;
+    float jolt = Math.abs(features.dz);
+    int direction = 0;
+    if (!isSideways && jolt > MIN_JOLT && jolt < MAX_JOLT) {
+      direction = features.dz > 0 ? 1 : -1;
+    }
+
+    boolean isTap = joltDirection != 0 && direction == -joltDirection
+        && (!hasTapped || features.timestampNanos - lastTapNanos >= REFRACTORY_NANOS);
+    if (isTap) {
+      joltDirection = 0;
+      lastTapNanos = features.timestampNanos;
+      hasTapped = true;
+      return Gesture.TAP;
+    }
+    joltDirection = direction;
+    return Gesture.NONE;
+  }
+
+  @Override
+  public void reset() {
+    joltDirection = 0;
+    hasTapped = false;
+  }
+}
@@ -0,0 +1,59 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+import android.telephony.PhoneStateListener;
+import android.telephony.TelephonyManager;
+
+/**
+ * Gets the call state from the TelephonyManager. Queries are a binder call to
+ * the phone process. Changes are delivered by a PhoneStateListener on the
+ * looper of the thread that started the source.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class TelephonyCallStateSource implements CallStateSource {
+  private final TelephonyManager telephonyManager;
+
+  /* Listens for call state changes while started. */
+  private PhoneStateListener phoneStateListener;
+
+  public TelephonyCallStateSource(TelephonyManager telephonyManager) {
+    this.telephonyManager = telephonyManager;
+  }
+
+  public int getCallState() {
+    return telephonyManager.getCallState();
+  }
+
+  public void start(final Listener listener) {
+    stop();
+    phoneStateListener = new PhoneStateListener() {
+      @Override
+      public void onCallStateChanged(int state, String incomingNumber) {
+        listener.onCallStateChanged(state);
+      }
+    };
+    telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_CALL_STATE);
+  }
+
+  public void stop() {
+    if (phoneStateListener != null) {
+      telephonyManager.listen(phoneStateListener, PhoneStateListener.LISTEN_NONE);
+      phoneStateListener = null;
+    }
+  }
+}
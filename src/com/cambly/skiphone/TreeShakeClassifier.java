@@ -0,0 +1,63 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Detects shakes with a trained {@link ShakeTreeModel} instead of fixed
+ * thresholds. The features are updated incrementally as readings arrive and
+ * the model is evaluated every half second, when a feature block completes.
+ * 
+ * This class is not thread safe and does not allocate after construction.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class TreeShakeClassifier {
+  /* The minimum amount of time to wait between shakes in ns. */
+  private static final long WAIT_TIME_NS = 2000L * 1000 * 1000;
+
+  private final ShakeTreeModel model;
+
+  private final ShakeFeatureExtractor extractor = new ShakeFeatureExtractor();
+
+  /* Readings before this sensor time are ignored after a shake. */
+  private long nextShakeAllowedNanos = Long.MIN_VALUE;
+
+  public TreeShakeClassifier(ShakeTreeModel model) {
+    this.model = model;
+  }
+
+  /**
+   * Process one accelerometer reading.
+   * 
+   * @return Gesture.NONE, Gesture.VERTICAL_SHAKE or Gesture.HORIZONTAL_SHAKE
+   */
+  public int onSample(long timestampNanos, float x, float y, float z) {
+    if (!extractor.onSample(timestampNanos, x, y, z) || timestampNanos < nextShakeAllowedNanos) {
+      return Gesture.NONE;
+    }
+    int shake = model.classify(extractor.getFeatures());
+    if (shake != Gesture.NONE) {
+      nextShakeAllowedNanos = timestampNanos + WAIT_TIME_NS;
+      extractor.reset();
+    }
+    return shake;
+  }
+
+  public void reset() {
+    extractor.reset();
+    nextShakeAllowedNanos = Long.MIN_VALUE;
+  }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright 2012 Kevin Law
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.cambly.skiphone;
+
+/**
+ * Recognizes a twist: a quick rotation of the phone about its long axis
+ * followed by a rotation back, like turning a door handle. Needs a gyroscope.
+ * 
+ * @author kevin@intercambly.com (Kevin Law)
+ */
+public class TwistRecognizer extends GestureRecognizer {
+  /* Rotation rate that counts as part of a twist, in rad/s. */
+  private static final float MIN_RATE = 4.0f;
+
+  /* The longest time between the two rotations, in ns. */
+  private static final long WINDOW_NANOS = 600L * 1000 * 1000;
+
+  /* Direction of the first rotation, or 0 if there hasn't been one. */
+  private int direction = 0;
+  private long firstRotationNanos;
+
+  @Override
+  public int onFeatures(MotionFeatures features) {
+    if (!features.hasRotation) {
+      direction = 0;
+      return Gesture.NONE;
+    }
+
+    float rate = features.rotationY;
+    if (direction != 0 && features.timestampNanos - firstRotationNanos > WINDOW_NANOS) {
+      direction = 0;
+    }
+    if (rate > MIN_RATE || rate < -MIN_RATE) {
+      int rateDirection = rate > 0 ? 1 : -1;
+      if (direction == -rateDirection) {
+        direction = 0;
+        return Gesture.TWIST;
+      }
+      if (direction == 0) {
+        direction = rateDirection;
+        firstRotationNanos = features.timestampNanos;
+      }
+    }
+    return Gesture.NONE;
+  }
+
+  @Override
+  public void reset() {
+    direction = 0;
+  }
+}